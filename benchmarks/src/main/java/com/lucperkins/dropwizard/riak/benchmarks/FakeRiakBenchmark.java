@@ -0,0 +1,106 @@
+package com.lucperkins.dropwizard.riak.benchmarks;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.lucperkins.dropwizard.riak.FakeRiakServer;
+import com.lucperkins.dropwizard.riak.dao.JacksonConverter;
+import com.lucperkins.dropwizard.riak.dao.RiakDAO;
+import com.lucperkins.dropwizard.riak.dao.ValueCompression;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Starts a {@link FakeRiakServer} with a cluster and DAO pointed at it, and
+ * preloads {@link #KEYS} payloads. Each benchmark invocation issues
+ * {@code concurrency} asynchronous operations and waits for all of them, so
+ * scores are per batch: multiply throughput by {@code concurrency} for
+ * operations per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public abstract class FakeRiakBenchmark {
+    protected static final int KEYS = 1024;
+
+    @Param({"json", "smile", "smile-lz4"})
+    public String format;
+
+    @Param({"128", "4096", "65536"})
+    public int payloadSize;
+
+    @Param({"1", "16", "64"})
+    public int concurrency;
+
+    protected FakeRiakServer server;
+    protected RiakCluster cluster;
+    protected RiakDAO<Payload> riak;
+    protected List<Payload> payloads;
+
+    @Setup(Level.Trial)
+    public void startRiak() throws Exception {
+        server = new FakeRiakServer().start();
+        // Open enough connections up front, so connection setup isn't measured
+        cluster = server.buildCluster(new RiakNode.Builder().withMinConnections(2 * concurrency + 4));
+        cluster.start();
+
+        riak = new RiakDAO<>(new RiakClient(cluster), Payload.class);
+        switch (format) {
+            case "json":
+                // the client's default converter
+                break;
+            case "smile":
+                riak.withConverter(JacksonConverter.smile(Payload.class));
+                break;
+            case "smile-lz4":
+                riak.withConverter(JacksonConverter.smile(Payload.class).withCompression(ValueCompression.LZ4));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+
+        payloads = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            Payload payload = new Payload("key-" + i, payloadSize);
+            payloads.add(payload);
+            riak.store(payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopRiak() throws Exception {
+        cluster.shutdown().get();
+        server.close();
+    }
+
+    protected Payload randomPayload() {
+        return payloads.get(ThreadLocalRandom.current().nextInt(KEYS));
+    }
+
+    protected void batch(Supplier<? extends CompletableFuture<?>> operation) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            futures[i] = operation.get();
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+}
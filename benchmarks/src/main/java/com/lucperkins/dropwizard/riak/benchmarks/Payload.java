@@ -0,0 +1,44 @@
+package com.lucperkins.dropwizard.riak.benchmarks;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.lucperkins.dropwizard.riak.dao.RiakableObject;
+
+import java.util.Random;
+
+/**
+ * A {@link RiakableObject} with a body of roughly {@code size} characters
+ * of word-like text, so that compression has something realistic to do.
+ */
+public class Payload extends RiakableObject {
+    static final String BUCKET = "benchmarks";
+
+    private String body;
+
+    public Payload(String key, int size) {
+        setBucket(BUCKET);
+        setKey(key);
+        this.body = text(key.hashCode(), size);
+    }
+
+    // Jackson constructor
+    public Payload() {}
+
+    @JsonProperty
+    public String getBody() { return body; }
+
+    public void setBody(String body) { this.body = body; }
+
+    private static String text(long seed, int size) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            int wordLength = 2 + random.nextInt(8);
+            for (int i = 0; i < wordLength; i++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            text.append(' ');
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package com.lucperkins.dropwizard.riak.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+public class RiakDAOBenchmark extends FakeRiakBenchmark {
+    @Benchmark
+    public void fetch() {
+        batch(() -> riak.fetchAsync(randomPayload().getLocation()));
+    }
+
+    @Benchmark
+    public void store() {
+        batch(() -> riak.storeAsync(randomPayload()));
+    }
+
+    @Benchmark
+    public void update() {
+        batch(() -> riak.updateAsync(randomPayload()));
+    }
+
+    // Deleting a missing key is still a full round trip, so the keyspace
+    // emptying out over the run doesn't change what's measured.
+    @Benchmark
+    public void delete() {
+        batch(() -> riak.deleteAsync(randomPayload()));
+    }
+
+    @Benchmark
+    public void found() {
+        batch(() -> riak.foundAsync(randomPayload().getLocation()));
+    }
+}
@@ -0,0 +1,43 @@
+package com.lucperkins.dropwizard.riak.benchmarks;
+
+import com.basho.riak.client.api.commands.kv.UpdateValue;
+import com.lucperkins.dropwizard.riak.dao.RiakResourceDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+public class RiakResourceDriverBenchmark extends FakeRiakBenchmark {
+    private RiakResourceDriver<Payload> driver;
+
+    @Setup(Level.Trial)
+    public void createDriver() {
+        driver = new RiakResourceDriver<>(riak);
+    }
+
+    @Benchmark
+    public void get() {
+        batch(() -> driver.getAsync(Payload.BUCKET, randomPayload().getKey()));
+    }
+
+    @Benchmark
+    public void put() {
+        batch(() -> {
+            Payload payload = randomPayload();
+            return driver.putAsync(payload.getLocation(), replaceWith(payload));
+        });
+    }
+
+    @Benchmark
+    public void delete() {
+        batch(() -> driver.deleteAsync(Payload.BUCKET, randomPayload().getKey()));
+    }
+
+    private static UpdateValue.Update<Payload> replaceWith(Payload payload) {
+        return new UpdateValue.Update<Payload>() {
+            @Override
+            public Payload apply(Payload original) {
+                return payload;
+            }
+        };
+    }
+}
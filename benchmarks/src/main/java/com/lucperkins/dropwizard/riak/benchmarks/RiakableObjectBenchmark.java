@@ -0,0 +1,77 @@
+package com.lucperkins.dropwizard.riak.benchmarks;
+
+import com.basho.riak.client.api.convert.JSONConverter;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.Namespace;
+import com.basho.riak.client.core.query.RiakObject;
+import com.lucperkins.dropwizard.riak.Person;
+import com.lucperkins.dropwizard.riak.dao.JacksonConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the client's reflective annotation handling and per-call
+ * {@link Location} allocation with the cached paths used by
+ * {@link JacksonConverter} and {@code RiakableObject}. Run with
+ * {@code -prof gc} to see the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RiakableObjectBenchmark {
+    private final JSONConverter<Person> reflective = new JSONConverter<>(Person.class);
+    private final JacksonConverter<Person> direct = JacksonConverter.json(Person.class);
+
+    private Person person;
+    private RiakObject stored;
+
+    @Setup
+    public void setUp() {
+        person = new Person("Luc", 32, Collections.singleton("guitar"));
+        stored = reflective.fromDomain(person, null, null).getRiakObject();
+    }
+
+    @Benchmark
+    public Location newLocation() {
+        return new Location(new Namespace(person.getBucketType(), person.getBucket()), person.getKey());
+    }
+
+    @Benchmark
+    public Location cachedLocation() {
+        return person.getLocation();
+    }
+
+    @Benchmark
+    public Object reflectiveFromDomain() {
+        return reflective.fromDomain(person, null, null);
+    }
+
+    @Benchmark
+    public Object directFromDomain() {
+        return direct.fromDomain(person, null, null);
+    }
+
+    @Benchmark
+    public Person reflectiveToDomain() {
+        return reflective.toDomain(stored, person.getLocation());
+    }
+
+    @Benchmark
+    public Person directToDomain() {
+        return direct.toDomain(stored, person.getLocation());
+    }
+}
@@ -0,0 +1,50 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.core.query.Location;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of one batch (or, from {@link RiakBulkWriter#storeAll}, a whole
+ * run) of bulk writes. The counts are per write; {@link #getFailures} has
+ * one entry per location, holding its last failure if the same key was
+ * written more than once.
+ */
+public class BulkWriteReport {
+    private final int batch;
+    private final int attempted;
+    private final int failed;
+    private final Map<Location, RiakException> failures;
+    private final long elapsedNanos;
+
+    BulkWriteReport(int batch, int attempted, int failed, Map<Location, RiakException> failures, long elapsedNanos) {
+        this.batch = batch;
+        this.attempted = attempted;
+        this.failed = failed;
+        this.failures = Collections.unmodifiableMap(failures);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getBatch() { return batch; }
+    public int getAttempted() { return attempted; }
+    public int getFailed() { return failed; }
+    public int getSucceeded() { return attempted - failed; }
+    public Map<Location, RiakException> getFailures() { return failures; }
+
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public double getOpsPerSecond() {
+        return elapsedNanos == 0 ? 0 : attempted / (elapsedNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("batch %d: %d/%d succeeded in %d ms (%.1f ops/s)",
+                batch, getSucceeded(), attempted, getElapsed(TimeUnit.MILLISECONDS), getOpsPerSecond());
+    }
+}
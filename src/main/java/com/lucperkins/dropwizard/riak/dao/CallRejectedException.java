@@ -0,0 +1,26 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakException;
+
+/**
+ * A call that {@link CircuitBreakers} turned away without sending it to
+ * Riak, because the breaker is open or the bucket's bulkhead is full.
+ */
+public class CallRejectedException extends RiakException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    public CallRejectedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * How long until the breaker lets calls through again, or 0 if that's
+     * not known (e.g. a full bulkhead).
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
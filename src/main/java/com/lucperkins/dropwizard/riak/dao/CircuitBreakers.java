@@ -0,0 +1,353 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.core.query.Namespace;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breakers and bulkheads for {@link RiakDAO} calls, so that a
+ * struggling bucket fails fast with a {@link CallRejectedException} instead
+ * of tying up request threads and Riak connections.
+ *
+ * <p>Each bucket has a breaker for reads (fetches, existence checks and
+ * index queries) and one for writes (stores, updates and deletes). A breaker
+ * looks at its last {@code window} calls and opens once at least
+ * {@code minimumCalls} of them have been made and either the failure rate
+ * or the rate of calls slower than {@code slowCallDuration} reaches its
+ * threshold. It stays open for {@code openDuration}, then lets
+ * {@code halfOpenCalls} probes through: if they all succeed in time it
+ * closes again, and the first one that doesn't opens it for another
+ * {@code openDuration}.</p>
+ *
+ * <p>A bulkhead caps the calls in flight per bucket at
+ * {@code maxConcurrentCalls} (unlimited by default), so one hot bucket can't
+ * take every connection in the pool. Calls over the limit are rejected
+ * rather than queued.</p>
+ */
+public class CircuitBreakers {
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    public enum OperationClass {
+        READ, WRITE;
+
+        static OperationClass of(String op) {
+            switch (op) {
+                case "fetch":
+                case "found":
+                case "index":
+                case "fetchCounter":
+                case "fetchSet":
+                case "fetchMap":
+                    return READ;
+                default:
+                    return WRITE;
+            }
+        }
+    }
+
+    private final ConcurrentMap<Namespace, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Namespace, Breaker[]> breakers = new ConcurrentHashMap<>();
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 0.5;
+    private long slowCallNanos = TimeUnit.SECONDS.toNanos(1);
+    private int window = 20;
+    private int minimumCalls = 10;
+    private long openNanos = TimeUnit.SECONDS.toNanos(10);
+    private int halfOpenCalls = 3;
+    private int maxConcurrentCalls = Integer.MAX_VALUE;
+    private MetricRegistry metrics;
+    private String name;
+
+    public CircuitBreakers withFailureRateThreshold(double threshold) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be in (0, 1]");
+        }
+        this.failureRateThreshold = threshold;
+        return this;
+    }
+
+    public CircuitBreakers withSlowCallThreshold(double threshold, long slowCallDuration, TimeUnit unit) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold must be in (0, 1]");
+        }
+        this.slowCallRateThreshold = threshold;
+        this.slowCallNanos = unit.toNanos(slowCallDuration);
+        return this;
+    }
+
+    public CircuitBreakers withWindow(int window, int minimumCalls) {
+        if (window < 1 || minimumCalls < 1 || minimumCalls > window) {
+            throw new IllegalArgumentException("minimumCalls must be between 1 and window");
+        }
+        this.window = window;
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    public CircuitBreakers withOpenDuration(long openDuration, TimeUnit unit) {
+        this.openNanos = unit.toNanos(openDuration);
+        return this;
+    }
+
+    public CircuitBreakers withHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls < 1) {
+            throw new IllegalArgumentException("halfOpenCalls must be at least 1");
+        }
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+
+    public CircuitBreakers withMaxConcurrentCalls(int maxConcurrentCalls) {
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("maxConcurrentCalls must be at least 1");
+        }
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        return this;
+    }
+
+    /**
+     * Registers, per bucket, a {@code <read|write>.state} gauge (0 closed,
+     * 1 half open, 2 open), {@code <read|write>.opened} and
+     * {@code <read|write>.rejected} counters, an {@code in-flight} gauge and
+     * a {@code bulkhead-rejected} counter under
+     * {@code CircuitBreakers.<name>.<bucketType>.<bucket>}. Set this before
+     * the first call.
+     */
+    public CircuitBreakers withMetrics(MetricRegistry metrics, String name) {
+        this.metrics = metrics;
+        this.name = name;
+        return this;
+    }
+
+    public State getState(Namespace ns, OperationClass operationClass) {
+        Breaker[] forBucket = breakers.get(ns);
+        return forBucket == null ? State.CLOSED : forBucket[operationClass.ordinal()].state(System.nanoTime());
+    }
+
+    public int getInFlight(Namespace ns) {
+        Bulkhead bulkhead = bulkheads.get(ns);
+        return bulkhead == null ? 0 : bulkhead.inFlight.get();
+    }
+
+    /**
+     * Runs {@code call} behind the bucket's bulkhead and breaker. Only
+     * exceptions that {@code isFailure} accepts count against the breaker;
+     * the rest, such as a missing object, are ordinary answers from Riak.
+     */
+    <R> CompletableFuture<R> execute(String op, Namespace ns, Supplier<CompletableFuture<R>> call,
+                                     Predicate<Throwable> isFailure) {
+        OperationClass operationClass = OperationClass.of(op);
+        Bulkhead bulkhead = bulkheads.computeIfAbsent(ns, Bulkhead::new);
+        if (!bulkhead.tryAcquire()) {
+            bulkhead.rejected.inc();
+            return rejected(new CallRejectedException(
+                    "Too many concurrent calls to " + describe(ns), 0));
+        }
+
+        Breaker breaker = breakers.computeIfAbsent(ns, this::newBreakers)[operationClass.ordinal()];
+        long start = System.nanoTime();
+        int generation = breaker.tryAcquire(start);
+        if (generation < 0) {
+            bulkhead.release();
+            breaker.rejected.inc();
+            return rejected(new CallRejectedException(
+                    "Circuit breaker open for " + describe(ns) + " " + operationClass.name().toLowerCase(),
+                    TimeUnit.NANOSECONDS.toMillis(breaker.retryAfter(start))));
+        }
+
+        CompletableFuture<R> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            // A bad argument rather than a sign of Riak's health
+            bulkhead.release();
+            breaker.cancel(generation);
+            throw e;
+        }
+        return future.whenComplete((r, e) -> {
+            bulkhead.release();
+            long end = System.nanoTime();
+            breaker.record(generation, e != null && isFailure.test(e), end - start > slowCallNanos, end);
+        });
+    }
+
+    private Breaker[] newBreakers(Namespace ns) {
+        Breaker[] forBucket = new Breaker[OperationClass.values().length];
+        for (OperationClass operationClass : OperationClass.values()) {
+            forBucket[operationClass.ordinal()] = new Breaker(ns, operationClass);
+        }
+        return forBucket;
+    }
+
+    private static <R> CompletableFuture<R> rejected(CallRejectedException e) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static String describe(Namespace ns) {
+        return ns.getBucketTypeAsString() + "/" + ns.getBucketNameAsString();
+    }
+
+    private String metricName(Namespace ns, String... names) {
+        return MetricRegistry.name(MetricRegistry.name(CircuitBreakers.class, name,
+                ns.getBucketTypeAsString(), ns.getBucketNameAsString()), names);
+    }
+
+    private Counter counter(Namespace ns, String... names) {
+        return metrics == null ? new Counter() : metrics.counter(metricName(ns, names));
+    }
+
+    private void gauge(Namespace ns, Gauge<?> gauge, String... names) {
+        if (metrics == null) {
+            return;
+        }
+        String metric = metricName(ns, names);
+        synchronized (metrics) {
+            if (!metrics.getGauges().containsKey(metric)) {
+                metrics.register(metric, gauge);
+            }
+        }
+    }
+
+    private final class Bulkhead {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final Counter rejected;
+
+        Bulkhead(Namespace ns) {
+            this.rejected = counter(ns, "bulkhead-rejected");
+            gauge(ns, (Gauge<Integer>) inFlight::get, "in-flight");
+        }
+
+        boolean tryAcquire() {
+            if (inFlight.incrementAndGet() > maxConcurrentCalls) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * One breaker's state. Every transition starts a new generation, so
+     * that calls admitted before it don't count towards the new state.
+     */
+    private final class Breaker {
+        final Counter rejected;
+        final Counter opened;
+        private final boolean[] failed = new boolean[window];
+        private final boolean[] slow = new boolean[window];
+        private State state = State.CLOSED;
+        private int generation;
+        private int calls;
+        private int next;
+        private int failures;
+        private int slowCalls;
+        private long openUntil;
+        private int probesStarted;
+        private int probesPassed;
+
+        Breaker(Namespace ns, OperationClass operationClass) {
+            String prefix = operationClass.name().toLowerCase();
+            this.rejected = counter(ns, prefix, "rejected");
+            this.opened = counter(ns, prefix, "opened");
+            gauge(ns, (Gauge<Integer>) () -> state(System.nanoTime()).ordinal(), prefix, "state");
+        }
+
+        synchronized State state(long now) {
+            return state == State.OPEN && now - openUntil >= 0 ? State.HALF_OPEN : state;
+        }
+
+        /**
+         * The generation the call was admitted in, or -1 if it's rejected.
+         */
+        synchronized int tryAcquire(long now) {
+            if (state == State.OPEN) {
+                if (now - openUntil < 0) {
+                    return -1;
+                }
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesStarted >= halfOpenCalls) {
+                    return -1;
+                }
+                probesStarted++;
+            }
+            return generation;
+        }
+
+        synchronized long retryAfter(long now) {
+            return state == State.OPEN ? Math.max(openUntil - now, 0) : 0;
+        }
+
+        synchronized void cancel(int admittedIn) {
+            if (admittedIn == generation && state == State.HALF_OPEN) {
+                probesStarted--;
+            }
+        }
+
+        synchronized void record(int admittedIn, boolean failure, boolean slowCall, long now) {
+            if (admittedIn != generation) {
+                return;
+            }
+            if (state == State.HALF_OPEN) {
+                if (failure || slowCall) {
+                    open(now);
+                } else if (++probesPassed >= halfOpenCalls) {
+                    transition(State.CLOSED);
+                }
+                return;
+            }
+
+            if (calls == window) {
+                failures -= failed[next] ? 1 : 0;
+                slowCalls -= slow[next] ? 1 : 0;
+            } else {
+                calls++;
+            }
+            failed[next] = failure;
+            slow[next] = slowCall;
+            failures += failure ? 1 : 0;
+            slowCalls += slowCall ? 1 : 0;
+            next = (next + 1) % window;
+
+            if (calls >= minimumCalls && (failures >= failureRateThreshold * calls
+                    || slowCalls >= slowCallRateThreshold * calls)) {
+                open(now);
+            }
+        }
+
+        private void open(long now) {
+            transition(State.OPEN);
+            openUntil = now + openNanos;
+            opened.inc();
+        }
+
+        private void transition(State to) {
+            state = to;
+            generation = (generation + 1) & Integer.MAX_VALUE;
+            calls = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+            probesStarted = 0;
+            probesPassed = 0;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Speculative retries for {@link RiakDAO} fetches. If a fetch is still
+ * outstanding after the configured percentile of recent fetch latencies,
+ * a second identical fetch is sent and whichever answers first wins. The
+ * cluster's node manager hands the second request to the next node in its
+ * rotation, so a single slow node doesn't hold up the read.
+ *
+ * <p>The percentile is taken over the last {@value #SAMPLES} successful
+ * fetches and recomputed at most every {@value #REFRESH_MILLIS}ms, not per
+ * fetch.</p>
+ *
+ * <p>Hedges are paid for out of a budget: every fetch earns
+ * {@code budgetRatio} of a hedge, so with the default of 0.05 at most about
+ * 5% extra reads are sent to Riak. Retries from a {@link RetryPolicy} are
+ * paid for out of a separate budget.</p>
+ */
+public class HedgedReads {
+    private static final int SAMPLES = 1024;
+    private static final long REFRESH_MILLIS = 100;
+
+    private final ScheduledExecutorService scheduler;
+    private final Histogram latencies = new Histogram(new SlidingWindowReservoir(SAMPLES));
+    private final RetryBudget budget = new RetryBudget(0.05);
+    private final AtomicLong refreshAt = new AtomicLong(System.nanoTime());
+    private volatile long delayNanos;
+    private double percentile = 0.95;
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private Counter fired = new Counter();
+    private Counter won = new Counter();
+    private Counter denied = new Counter();
+
+    public HedgedReads(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public HedgedReads withPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    public HedgedReads withMinDelay(long delay, TimeUnit unit) {
+        this.minDelayNanos = unit.toNanos(delay);
+        return this;
+    }
+
+    public HedgedReads withBudget(double budgetRatio) {
+        budget.withRatio(budgetRatio);
+        return this;
+    }
+
+    public HedgedReads withMetrics(MetricRegistry metrics, String name) {
+        this.fired = metrics.counter(MetricRegistry.name(HedgedReads.class, name, "fired"));
+        this.won = metrics.counter(MetricRegistry.name(HedgedReads.class, name, "won"));
+        this.denied = metrics.counter(MetricRegistry.name(HedgedReads.class, name, "denied"));
+        return this;
+    }
+
+    public long getDelay(TimeUnit unit) {
+        long now = System.nanoTime();
+        long refresh = refreshAt.get();
+        // Only one caller per interval pays for the snapshot
+        if (now - refresh >= 0 && refreshAt.compareAndSet(refresh, now + TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS))) {
+            delayNanos = (long) latencies.getSnapshot().getValue(percentile);
+        }
+        return unit.convert(Math.max(minDelayNanos, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    <R> CompletableFuture<R> execute(Supplier<CompletableFuture<R>> call) {
+        budget.earn();
+        CompletableFuture<R> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        long start = System.nanoTime();
+
+        call.get().whenComplete((r, e) -> {
+            if (e == null) {
+                latencies.update(System.nanoTime() - start);
+                result.complete(r);
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        if (!result.isDone()) {
+            ScheduledFuture<?> timer = scheduler.schedule(() -> hedge(call, result, outstanding),
+                    getDelay(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            result.whenComplete((r, e) -> timer.cancel(false));
+        }
+        return result;
+    }
+
+    private <R> void hedge(Supplier<CompletableFuture<R>> call, CompletableFuture<R> result,
+                           AtomicInteger outstanding) {
+        if (result.isDone()) {
+            return;
+        }
+        if (!budget.spend()) {
+            denied.inc();
+            return;
+        }
+
+        fired.inc();
+        outstanding.incrementAndGet();
+        call.get().whenComplete((r, e) -> {
+            if (e == null) {
+                if (result.complete(r)) {
+                    won.inc();
+                }
+            } else if (outstanding.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Walks the pages of an index query, requesting each page from Riak as the
+ * previous one is handed out so that at most two pages are held at once.
+ * Failures surface as a {@link java.util.concurrent.CompletionException}
+ * wrapping a {@code RiakException}.
+ */
+class IndexPageIterator<K> implements Iterator<RiakIndexPage<K>> {
+    private final Function<String, CompletableFuture<RiakIndexPage<K>>> fetchPage;
+    private CompletableFuture<RiakIndexPage<K>> next;
+    private String start;
+    private boolean started;
+
+    IndexPageIterator(String continuation, Function<String, CompletableFuture<RiakIndexPage<K>>> fetchPage) {
+        this.start = continuation;
+        this.fetchPage = fetchPage;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) {
+            started = true;
+            next = fetchPage.apply(start);
+            start = null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public RiakIndexPage<K> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RiakIndexPage<K> page = next.join();
+        next = page.hasContinuation() ? fetchPage.apply(page.getContinuation()) : null;
+        return page;
+    }
+}
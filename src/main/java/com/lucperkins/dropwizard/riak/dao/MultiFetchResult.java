@@ -0,0 +1,48 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.core.query.Location;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-key outcome of {@link RiakDAO#fetchAll}. Every requested location
+ * ends up in exactly one of the values, not-found, or failures buckets.
+ */
+public class MultiFetchResult<T> {
+    private final Map<Location, T> values = new LinkedHashMap<>();
+    private final Set<Location> notFound = new LinkedHashSet<>();
+    private final Map<Location, RiakException> failures = new LinkedHashMap<>();
+
+    synchronized void found(Location loc, T value) {
+        values.put(loc, value);
+    }
+
+    synchronized void notFound(Location loc) {
+        notFound.add(loc);
+    }
+
+    synchronized void failed(Location loc, RiakException e) {
+        failures.put(loc, e);
+    }
+
+    public synchronized Map<Location, T> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    public synchronized Set<Location> getNotFound() {
+        return Collections.unmodifiableSet(notFound);
+    }
+
+    public synchronized Map<Location, RiakException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public synchronized boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+}
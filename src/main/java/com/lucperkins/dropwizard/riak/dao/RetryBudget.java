@@ -0,0 +1,54 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pays for extra requests to Riak, such as {@link HedgedReads hedges} and
+ * {@link RetryPolicy retries}: every call earns {@code ratio} of an extra
+ * request and each extra request spends a whole one. Up to ten can be saved
+ * up, so a short burst is covered but a sustained outage adds at most
+ * {@code ratio} to the load instead of multiplying it.
+ *
+ * <p>Each {@link HedgedReads} and {@link RetryPolicy} has its own budget, so
+ * a DAO using both can add up to the sum of their ratios.</p>
+ */
+final class RetryBudget {
+    private static final long TOKEN = 1000;
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final AtomicLong tokens = new AtomicLong(MAX_TOKENS);
+    private volatile long earnPerRequest;
+
+    RetryBudget(double ratio) {
+        withRatio(ratio);
+    }
+
+    RetryBudget withRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("budgetRatio must be between 0 and 1");
+        }
+        this.earnPerRequest = Math.round(ratio * TOKEN);
+        return this;
+    }
+
+    void earn() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= MAX_TOKENS) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(MAX_TOKENS, current + earnPerRequest)));
+    }
+
+    boolean spend() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+}
@@ -0,0 +1,184 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.core.NoNodesAvailableException;
+import com.basho.riak.client.core.netty.RiakResponseException;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Retries for {@link RiakDAO} operations that are safe to repeat: fetches,
+ * existence checks, index queries, deletes and
+ * {@link RiakDAO#storeIfNotModified}. Plain stores and updates are never
+ * retried, since repeating one that was applied could write twice.
+ *
+ * <p>Only transient failures are retried: no node being available, I/O
+ * errors, timeouts, and error responses in which Riak reports it is
+ * overloaded, timed out, or couldn't reach enough replicas. Other error
+ * responses, such as failed preconditions or bad requests, and calls
+ * rejected by {@link CircuitBreakers} are not. Retry {@code n} waits between half and
+ * all of {@code base * 2^(n-1)}, capped at {@code maxBackoff}, and no retry
+ * is started once {@code deadline} has passed since the first attempt.</p>
+ *
+ * <p>Like hedges, retries are paid for out of a budget shared by everything
+ * using the policy: every call earns {@code budgetRatio} of a retry, so
+ * with the default of 0.1 an outage adds at most about 10% to the load on
+ * Riak instead of multiplying it. The budget is separate from that of
+ * {@link HedgedReads}, which can add its own share on top.</p>
+ *
+ * <p>The cluster already retries a failed operation on other nodes straight
+ * away ({@code executionAttempts}). These retries come on top of that and
+ * are meant for failures that outlast it. A conditional store whose first
+ * attempt was applied but not acknowledged reports a conflict when
+ * retried.</p>
+ */
+public class RetryPolicy {
+    // Riak's error messages for conditions that can clear up on their own
+    private static final List<String> TRANSIENT_ERRORS = Arrays.asList(
+            "overload", "timeout", "all_nodes_down", "{insufficient_vnodes", "{r_val_unsatisfied",
+            "{pr_val_unsatisfied", "{w_val_unsatisfied", "{dw_val_unsatisfied", "{pw_val_unsatisfied");
+
+    private final ScheduledExecutorService scheduler;
+    private final RetryBudget budget = new RetryBudget(0.1);
+    private int maxAttempts = 3;
+    private long baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private long maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private long deadlineNanos = TimeUnit.SECONDS.toNanos(2);
+    private Counter retries = new Counter();
+    private Counter recovered = new Counter();
+    private Counter denied = new Counter();
+
+    public RetryPolicy(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * The most attempts an operation gets, including the first.
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public RetryPolicy withBackoff(long base, long max, TimeUnit unit) {
+        if (base < 1 || max < base) {
+            throw new IllegalArgumentException("base must be positive and no more than max");
+        }
+        this.baseBackoffNanos = unit.toNanos(base);
+        this.maxBackoffNanos = unit.toNanos(max);
+        return this;
+    }
+
+    public RetryPolicy withDeadline(long deadline, TimeUnit unit) {
+        this.deadlineNanos = unit.toNanos(deadline);
+        return this;
+    }
+
+    public RetryPolicy withBudget(double budgetRatio) {
+        budget.withRatio(budgetRatio);
+        return this;
+    }
+
+    public RetryPolicy withMetrics(MetricRegistry metrics, String name) {
+        this.retries = metrics.counter(MetricRegistry.name(RetryPolicy.class, name, "retries"));
+        this.recovered = metrics.counter(MetricRegistry.name(RetryPolicy.class, name, "recovered"));
+        this.denied = metrics.counter(MetricRegistry.name(RetryPolicy.class, name, "denied"));
+        return this;
+    }
+
+    <R> CompletableFuture<R> execute(Supplier<CompletableFuture<R>> call) {
+        budget.earn();
+        CompletableFuture<R> result = new CompletableFuture<>();
+        attempt(call, call.get(), result, 1, System.nanoTime());
+        return result;
+    }
+
+    private <R> void attempt(Supplier<CompletableFuture<R>> call, CompletableFuture<R> future,
+                             CompletableFuture<R> result, int attempt, long start) {
+        future.whenComplete((r, e) -> {
+            if (e == null) {
+                if (attempt > 1) {
+                    recovered.inc();
+                }
+                result.complete(r);
+                return;
+            }
+
+            long delay = backoff(attempt);
+            if (attempt >= maxAttempts || !isTransient(e) || System.nanoTime() + delay - start > deadlineNanos) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (!budget.spend()) {
+                denied.inc();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            retries.inc();
+            try {
+                scheduler.schedule(() -> {
+                    CompletableFuture<R> next;
+                    try {
+                        next = call.get();
+                    } catch (RuntimeException retryFailure) {
+                        result.completeExceptionally(retryFailure);
+                        return;
+                    }
+                    attempt(call, next, result, attempt + 1, start);
+                }, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException stopped) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private long backoff(int attempt) {
+        long ceiling = maxBackoffNanos;
+        if (attempt - 1 < Long.numberOfLeadingZeros(baseBackoffNanos) - 1) {
+            ceiling = Math.min(maxBackoffNanos, baseBackoffNanos << (attempt - 1));
+        }
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    static boolean isTransient(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CallRejectedException) {
+                return false;
+            }
+            if (cause instanceof RiakResponseException) {
+                return isTransientError(cause.getMessage());
+            }
+            if (cause instanceof NoNodesAvailableException || cause instanceof IOException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTransientError(String message) {
+        if (message == null) {
+            return false;
+        }
+        for (String error : TRANSIENT_ERRORS) {
+            if (message.startsWith(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
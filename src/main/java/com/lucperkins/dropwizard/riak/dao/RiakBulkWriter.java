@@ -0,0 +1,156 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.core.query.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Pushes a stream of {@link RiakableObject}s through a {@link RiakDAO} with
+ * a fixed window of writes in flight. When the window is full the calling
+ * thread blocks until a slot frees up, so a fast producer can't outrun the
+ * cluster. A report is handed to the batch listener as each batch of
+ * {@code batchSize} writes completes.
+ */
+public class RiakBulkWriter {
+    private static final Logger log = LoggerFactory.getLogger(RiakBulkWriter.class);
+    private final RiakDAO<?> riak;
+    private final int window;
+    private final int batchSize;
+    private Consumer<BulkWriteReport> batchListener = report -> log.info(report.toString());
+
+    public RiakBulkWriter(RiakDAO<?> riak, int window, int batchSize) {
+        if (window < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("window and batchSize must be at least 1");
+        }
+        this.riak = riak;
+        this.window = window;
+        this.batchSize = batchSize;
+    }
+
+    public RiakBulkWriter withBatchListener(Consumer<BulkWriteReport> batchListener) {
+        this.batchListener = batchListener;
+        return this;
+    }
+
+    public BulkWriteReport storeAll(Stream<? extends RiakableObject> objects) throws RiakException {
+        return storeAll(objects.iterator());
+    }
+
+    public BulkWriteReport storeAll(Iterator<? extends RiakableObject> objects) throws RiakException {
+        return writeAll(objects, riak::storeAsync);
+    }
+
+    public BulkWriteReport deleteAll(Stream<? extends RiakableObject> objects) throws RiakException {
+        return deleteAll(objects.iterator());
+    }
+
+    public BulkWriteReport deleteAll(Iterator<? extends RiakableObject> objects) throws RiakException {
+        return writeAll(objects, riak::deleteAsync);
+    }
+
+    private BulkWriteReport writeAll(Iterator<? extends RiakableObject> objects,
+                                     Function<RiakableObject, CompletableFuture<Boolean>> write) throws RiakException {
+        Semaphore slots = new Semaphore(window);
+        Map<Location, RiakException> allFailures = new ConcurrentHashMap<>();
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        int attempted = 0;
+        Batch batch = null;
+
+        try {
+            while (objects.hasNext()) {
+                if (batch == null) {
+                    batch = new Batch(attempted / batchSize + 1);
+                }
+
+                RiakableObject obj = objects.next();
+                Location loc = obj.getLocation();
+                slots.acquire();
+                attempted++;
+                batch.submitted();
+
+                Batch current = batch;
+                CompletableFuture<Boolean> written;
+                try {
+                    written = write.apply(obj);
+                } catch (RuntimeException e) {
+                    // e.g. a value the converter can't serialize; counted like any other failed write
+                    written = new CompletableFuture<>();
+                    written.completeExceptionally(e);
+                }
+                written.whenComplete((ok, e) -> {
+                    if (e != null) {
+                        failed.incrementAndGet();
+                        current.failed(loc, RiakDAO.asRiakException(e));
+                    } else if (!ok) {
+                        failed.incrementAndGet();
+                        current.failed(loc, new RiakException("Write was not acknowledged"));
+                    }
+                    current.completed(allFailures);
+                    slots.release();
+                });
+
+                if (attempted % batchSize == 0) {
+                    batch.close(allFailures);
+                    batch = null;
+                }
+            }
+            if (batch != null) {
+                batch.close(allFailures);
+            }
+
+            slots.acquire(window);
+            slots.release(window);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RiakException(e);
+        }
+
+        return new BulkWriteReport(0, attempted, failed.get(), allFailures, System.nanoTime() - start);
+    }
+
+    private class Batch {
+        private final int number;
+        private final long start = System.nanoTime();
+        private final Map<Location, RiakException> failures = new ConcurrentHashMap<>();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private int size;
+
+        Batch(int number) {
+            this.number = number;
+        }
+
+        void submitted() {
+            size++;
+            pending.incrementAndGet();
+        }
+
+        void failed(Location loc, RiakException e) {
+            failed.incrementAndGet();
+            failures.put(loc, e);
+        }
+
+        void close(Map<Location, RiakException> allFailures) {
+            completed(allFailures);
+        }
+
+        void completed(Map<Location, RiakException> allFailures) {
+            if (pending.decrementAndGet() == 0) {
+                allFailures.putAll(failures);
+                batchListener.accept(new BulkWriteReport(number, size, failed.get(), failures, System.nanoTime() - start));
+            }
+        }
+    }
+}
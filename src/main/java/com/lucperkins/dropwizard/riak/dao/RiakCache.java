@@ -0,0 +1,140 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.cap.VClock;
+import com.basho.riak.client.core.query.Location;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process read-through cache for {@link RiakDAO#fetch}, keyed by
+ * {@link Location} (bucket type, bucket and key). Entries are dropped once
+ * the cache is full or {@code ttl} has passed since they were written.
+ *
+ * <p>If a revalidation interval is set, entries older than it are not served
+ * directly: the DAO re-fetches them with {@code IF_MODIFIED} and the cached
+ * {@link VClock}, so an unchanged object costs a round trip but no body.</p>
+ *
+ * <p>Every invalidation bumps a generation for the location (locations share
+ * {@value #GENERATIONS} counters by hash). A fetch only caches what it read
+ * if the generation hasn't moved since it started, so a fetch that raced a
+ * write can't put back the value the write replaced.</p>
+ *
+ * <p>Cached objects are shared between callers and must not be mutated.</p>
+ */
+public class RiakCache<T> {
+    private static final int GENERATIONS = 1024;
+
+    private final Cache<Location, Entry<T>> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+    private long revalidateAfterNanos = Long.MAX_VALUE;
+    private Counter hits = new Counter();
+    private Counter misses = new Counter();
+    private Counter evictions = new Counter();
+    private Counter revalidations = new Counter();
+
+    public RiakCache(long maximumSize, long ttl, TimeUnit unit) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .<Location, Entry<T>>removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        evictions.inc();
+                    }
+                })
+                .build();
+    }
+
+    public RiakCache<T> withRevalidateAfter(long interval, TimeUnit unit) {
+        this.revalidateAfterNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    public RiakCache<T> withMetrics(MetricRegistry metrics, String name) {
+        this.hits = metrics.counter(MetricRegistry.name(RiakCache.class, name, "hits"));
+        this.misses = metrics.counter(MetricRegistry.name(RiakCache.class, name, "misses"));
+        this.evictions = metrics.counter(MetricRegistry.name(RiakCache.class, name, "evictions"));
+        this.revalidations = metrics.counter(MetricRegistry.name(RiakCache.class, name, "revalidations"));
+        return this;
+    }
+
+    public void invalidate(Location loc) {
+        generations.incrementAndGet(slot(loc));
+        cache.invalidate(loc);
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < GENERATIONS; i++) {
+            generations.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    Entry<T> lookup(Location loc) {
+        Entry<T> entry = cache.getIfPresent(loc);
+        if (entry == null) {
+            misses.inc();
+        } else if (isStale(entry)) {
+            revalidations.inc();
+        } else {
+            hits.inc();
+        }
+        return entry;
+    }
+
+    boolean isStale(Entry<T> entry) {
+        return entry.vClock != null && System.nanoTime() - entry.cachedAt > revalidateAfterNanos;
+    }
+
+    /**
+     * Read before fetching {@code loc}, and handed back to {@link #put}.
+     */
+    long generation(Location loc) {
+        return generations.get(slot(loc));
+    }
+
+    /**
+     * Caches {@code value} unless {@code loc} has been invalidated since
+     * {@code generation} was read.
+     */
+    void put(Location loc, T value, VClock vClock, long generation) {
+        Entry<T> entry = new Entry<>(value, vClock);
+        cache.put(loc, entry);
+        // Checked after the put: an invalidation racing it either bumped the
+        // generation first, or removes the entry after
+        if (generation(loc) != generation) {
+            cache.asMap().remove(loc, entry);
+        }
+    }
+
+    /**
+     * Re-arms the revalidation interval after Riak reports the cached copy is
+     * still current.
+     */
+    void touch(Location loc, Entry<T> entry, long generation) {
+        put(loc, entry.value, entry.vClock, generation);
+    }
+
+    private static int slot(Location loc) {
+        return (loc.hashCode() & Integer.MAX_VALUE) % GENERATIONS;
+    }
+
+    static class Entry<T> {
+        final T value;
+        final VClock vClock;
+        final long cachedAt = System.nanoTime();
+
+        Entry(T value, VClock vClock) {
+            this.value = value;
+            this.vClock = vClock;
+        }
+    }
+}
@@ -1,208 +1,1083 @@
 package com.lucperkins.dropwizard.riak.dao;
 
 import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakCommand;
 import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.api.cap.ConflictResolver;
+import com.basho.riak.client.api.cap.ConflictResolverFactory;
+import com.basho.riak.client.api.cap.UnresolvedConflictException;
+import com.basho.riak.client.api.convert.reflection.AnnotationUtil;
+import com.basho.riak.client.api.convert.Converter;
 import com.basho.riak.client.api.commands.kv.DeleteValue;
 import com.basho.riak.client.api.commands.kv.FetchValue;
 import com.basho.riak.client.api.commands.kv.StoreValue;
 import com.basho.riak.client.api.commands.kv.UpdateValue;
+import com.basho.riak.client.core.RiakFuture;
+import com.basho.riak.client.core.netty.RiakResponseException;
 import com.basho.riak.client.core.query.Location;
 import com.basho.riak.client.core.query.Namespace;
+import com.basho.riak.client.core.query.RiakObject;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class RiakDAO<T> {
     private static final Logger log = LoggerFactory.getLogger(RiakDAO.class);
     Class<T> clazz;
     private RiakClient client;
+    private WritePolicy writePolicy = WritePolicy.ACKNOWLEDGED;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private RiakCache<T> cache;
+    private ConcurrentMap<Location, CompletableFuture<T>> inFlight;
+    private RiakMetrics metrics;
+    private RiakOptions options = RiakOptions.DEFAULT;
+    private HedgedReads hedging;
+    private CircuitBreakers circuitBreakers;
+    private RetryPolicy retryPolicy;
+    private Executor executor = DEFAULT_EXECUTOR;
+    private ConflictResolver<T> resolver;
+    private Converter<T> converter;
+    private final ConcurrentMap<Namespace, ConflictResolver<T>> bucketResolvers = new ConcurrentHashMap<>();
+    private final TypeReference<T> typeReference;
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10;
+
+    // The generation of a fetch whose result isn't cached
+    private static final long UNCACHED = -1;
+
+    /**
+     * Completes the DAOs' futures unless they're given an executor of their
+     * own. A cached pool, since a follow-up command may block waiting for a
+     * connection.
+     */
+    static final Executor DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "riak-dao-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     public RiakDAO(RiakClient client, Class<T> clazz) {
         this.clazz = clazz;
         this.client = client;
+        this.typeReference = new TypeReference<T>() {
+            @Override
+            public Type getType() {
+                return clazz;
+            }
+        };
+    }
+
+    public RiakDAO<T> withWritePolicy(WritePolicy writePolicy) {
+        this.writePolicy = writePolicy;
+        return this;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    public RiakDAO<T> withMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public RiakDAO<T> withCache(RiakCache<T> cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public RiakCache<T> getCache() {
+        return cache;
+    }
+
+    /**
+     * When enabled, concurrent fetches of the same location share a single
+     * Riak operation and all receive its result (the same object instance,
+     * so callers must not mutate it). Fetches with call-level options always
+     * make their own request.
+     */
+    public RiakDAO<T> withSingleFlight(boolean singleFlight) {
+        this.inFlight = singleFlight ? new ConcurrentHashMap<>() : null;
+        return this;
+    }
+
+    public boolean isSingleFlight() {
+        return inFlight != null;
+    }
+
+    public RiakDAO<T> withMetrics(MetricRegistry registry) {
+        return withMetrics(new RiakMetrics(registry, RiakDAO.class, clazz.getSimpleName()));
+    }
+
+    public RiakDAO<T> withMetrics(RiakMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public RiakMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RiakDAO<T> withOptions(RiakOptions options) {
+        this.options = options == null ? RiakOptions.DEFAULT : options;
+        return this;
+    }
+
+    public RiakOptions getOptions() {
+        return options;
+    }
+
+    public RiakDAO<T> withHedging(HedgedReads hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    public HedgedReads getHedging() {
+        return hedging;
+    }
+
+    /**
+     * Guards every call with the given breakers and bulkheads, which may be
+     * shared between DAOs. Rejected calls fail with a
+     * {@link CallRejectedException} without reaching Riak.
+     */
+    public RiakDAO<T> withCircuitBreakers(CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+        return this;
+    }
+
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    /**
+     * Retries fetches, existence checks, index queries, deletes and
+     * conditional stores that fail transiently. See {@link RetryPolicy}.
+     */
+    public RiakDAO<T> withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Where this DAO's futures are completed, and so where callbacks and
+     * follow-up commands (an update's store, a verifying fetch) run. Never
+     * Netty's event loop, which a blocked callback would stall.
+     */
+    public RiakDAO<T> withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Turns {@code T} into Riak values and back with {@code converter}, e.g.
+     * {@code JacksonConverter.smile(Person.class)}, in this DAO's fetches and
+     * stores. Without one, the converter registered for {@code T} with the
+     * client's {@link com.basho.riak.client.api.convert.ConverterFactory},
+     * which applies JVM-wide, is used.
+     */
+    public RiakDAO<T> withConverter(Converter<T> converter) {
+        this.converter = converter;
+        return this;
+    }
+
+    public Converter<T> getConverter() {
+        return converter;
+    }
+
+    /**
+     * Resolves siblings with {@code resolver} (see {@link SiblingResolvers}
+     * for common strategies) in this DAO's fetches and updates. Without
+     * one, the resolver registered for {@code T} with
+     * {@link com.lucperkins.dropwizard.riak.operations.RiakClusterManager#registerConflictResolver},
+     * which applies JVM-wide, is used.
+     */
+    public RiakDAO<T> withResolver(ConflictResolver<T> resolver) {
+        this.resolver = resolver;
+        return this;
+    }
+
+    /**
+     * Like {@link #withResolver(ConflictResolver)}, but only for objects in
+     * {@code bucket}, and taking precedence over the DAO-wide resolver.
+     */
+    public RiakDAO<T> withResolver(String bucket, ConflictResolver<T> resolver) {
+        bucketResolvers.put(RiakNamespaces.of(bucket), resolver);
+        return this;
+    }
+
+    public RiakDAO<T> withResolver(String bucket, String bucketType, ConflictResolver<T> resolver) {
+        bucketResolvers.put(RiakNamespaces.of(bucketType, bucket), resolver);
+        return this;
     }
 
     public T fetch(Location loc) throws RiakException {
-        return fetchByLocation(loc);
+        return await(fetchAsync(loc));
+    }
+
+    public T fetch(Location loc, RiakOptions callOptions) throws RiakException {
+        return await(fetchAsync(loc, callOptions));
     }
 
     public T fetch(String bucket, String key) throws RiakException {
-        Location loc = makeLocation(bucket, key);
-        return fetchByLocation(loc);
+        return await(fetchAsync(bucket, key));
     }
 
     public T fetch(String bucket, String key, String bucketType) throws RiakException {
-        Location loc = makeLocation(bucket, key, bucketType);
-        return fetchByLocation(loc);
+        return await(fetchAsync(bucket, key, bucketType));
+    }
+
+    public MultiFetchResult<T> fetchAll(Collection<Location> locs) throws RiakException {
+        return await(fetchAllAsync(locs, maxInFlight));
+    }
+
+    public MultiFetchResult<T> fetchAll(Collection<Location> locs, int maxInFlight) throws RiakException {
+        return await(fetchAllAsync(locs, maxInFlight));
     }
 
     public boolean store(RiakableObject obj) throws RiakException {
-        Location loc = obj.getLocation();
-        StoreValue.Builder storeOp = new StoreValue.Builder(obj)
-                .withOption(StoreValue.Option.RETURN_BODY, true);
-        try {
-            client.execute(storeOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
-        }
+        return await(storeAsync(obj));
+    }
+
+    public boolean store(RiakableObject obj, RiakOptions callOptions) throws RiakException {
+        return await(storeAsync(obj, callOptions));
     }
 
     public boolean store(T t, String bucket, String key) throws RiakException {
-        Location loc = makeLocation(bucket, key);
-        StoreValue.Builder storeOp = new StoreValue.Builder(t)
-                .withLocation(loc);
+        return await(storeAsync(t, bucket, key));
+    }
+
+    public boolean store(T t, String bucket, String key, String bucketType) throws RiakException {
+        return await(storeAsync(t, bucket, key, bucketType));
+    }
+
+    public StoreResult storeIfAbsent(RiakableObject obj) throws RiakException {
+        return await(storeIfAbsentAsync(obj));
+    }
+
+    public StoreResult storeIfAbsent(RiakableObject obj, RiakOptions callOptions) throws RiakException {
+        return await(storeIfAbsentAsync(obj, callOptions));
+    }
+
+    public StoreResult storeIfNotModified(RiakableObject obj) throws RiakException {
+        return await(storeIfNotModifiedAsync(obj));
+    }
+
+    public StoreResult storeIfNotModified(RiakableObject obj, RiakOptions callOptions) throws RiakException {
+        return await(storeIfNotModifiedAsync(obj, callOptions));
+    }
+
+    public boolean update(Location loc, UpdateValue.Update<T> update) throws RiakException {
+        return await(updateAsync(loc, update));
+    }
+
+    public boolean update(Location loc, UpdateValue.Update<T> update, RiakOptions callOptions) throws RiakException {
+        return await(updateAsync(loc, update, callOptions));
+    }
+
+    public boolean update(T t, String bucket, String key) throws RiakException {
+        return await(updateAsync(t, bucket, key));
+    }
+
+    public boolean update(T t, String bucket, String key, String bucketType) throws RiakException {
+        return await(updateAsync(t, bucket, key, bucketType));
+    }
+
+    public boolean update(RiakableObject obj) throws RiakException {
+        return await(updateAsync(obj));
+    }
+
+    public boolean delete(Location loc) throws RiakException {
+        return await(deleteAsync(loc));
+    }
+
+    public boolean delete(Location loc, RiakOptions callOptions) throws RiakException {
+        return await(deleteAsync(loc, callOptions));
+    }
+
+    public boolean delete(RiakableObject obj) throws RiakException {
+        return await(deleteAsync(obj));
+    }
+
+    public boolean delete(String bucket, String key) throws RiakException {
+        return await(deleteAsync(bucket, key));
+    }
+
+    public boolean delete(String bucket, String key, String bucketType) throws RiakException {
+        return await(deleteAsync(bucket, key, bucketType));
+    }
+
+    public boolean found(Location loc) throws RiakException {
+        return await(foundAsync(loc));
+    }
+
+    public boolean found(Location loc, RiakOptions callOptions) throws RiakException {
+        return await(foundAsync(loc, callOptions));
+    }
+
+    public CompletableFuture<T> fetchAsync(Location loc) {
+        return fetchByLocation(loc, options);
+    }
+
+    /**
+     * Fetches {@code loc} with {@code callOptions} from Riak, bypassing the
+     * cache and single-flight: options such as a stricter read quorum ask
+     * for Riak's answer rather than a cached or shared one.
+     */
+    public CompletableFuture<T> fetchAsync(Location loc, RiakOptions callOptions) {
+        return retried("fetch", loc, () -> fetchFromRiak(loc, options.merge(callOptions), UNCACHED));
+    }
+
+    public CompletableFuture<T> fetchAsync(String bucket, String key) {
+        return fetchByLocation(makeLocation(bucket, key), options);
+    }
+
+    public CompletableFuture<T> fetchAsync(String bucket, String key, String bucketType) {
+        return fetchByLocation(makeLocation(bucket, key, bucketType), options);
+    }
+
+    public CompletableFuture<MultiFetchResult<T>> fetchAllAsync(Collection<Location> locs) {
+        return fetchAllAsync(locs, maxInFlight);
+    }
+
+    /**
+     * Fetches every location with at most {@code maxInFlight} requests
+     * outstanding at once. Each completed fetch starts the next one, so the
+     * cluster's nodes stay busy without the batch claiming the whole
+     * connection pool. Each key takes the same path as {@link #fetch}, through
+     * the cache, single-flight, hedging, retries and circuit breakers. A
+     * missing or failing key is recorded in the result rather than failing
+     * the batch.
+     */
+    public CompletableFuture<MultiFetchResult<T>> fetchAllAsync(Collection<Location> locs, int maxInFlight) {
+        MultiFetchResult<T> result = new MultiFetchResult<>();
+        CompletableFuture<MultiFetchResult<T>> done = new CompletableFuture<>();
+        if (locs.isEmpty()) {
+            done.complete(result);
+            return done;
+        }
+
+        Iterator<Location> pending = locs.iterator();
+        AtomicInteger remaining = new AtomicInteger(locs.size());
+        int lanes = Math.min(Math.max(maxInFlight, 1), locs.size());
+        for (int i = 0; i < lanes; i++) {
+            fetchNext(pending, result, remaining, done);
+        }
+        return done;
+    }
+
+    /**
+     * Runs one lane of {@link #fetchAllAsync}. Fetches that complete straight
+     * away, such as cache hits and rejected calls, are handled in a loop
+     * rather than by recursing, and once a fetch has to wait for Riak the
+     * lane carries on from the executor.
+     */
+    private void fetchNext(Iterator<Location> pending, MultiFetchResult<T> result,
+                           AtomicInteger remaining, CompletableFuture<MultiFetchResult<T>> done) {
         try {
-            client.execute(storeOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+            while (true) {
+                Location loc;
+                synchronized (pending) {
+                    if (!pending.hasNext()) {
+                        return;
+                    }
+                    loc = pending.next();
+                }
+
+                CompletableFuture<T> fetched = fetchByLocation(loc, options);
+                if (!fetched.isDone()) {
+                    fetched.handleAsync((t, e) -> {
+                        fetched(loc, t, e, result, remaining, done);
+                        fetchNext(pending, result, remaining, done);
+                        return null;
+                    }, executor).exceptionally(e -> {
+                        // The executor has shut down, or recording the result failed
+                        done.completeExceptionally(e);
+                        return null;
+                    });
+                    return;
+                }
+                fetched.whenComplete((t, e) -> fetched(loc, t, e, result, remaining, done));
+            }
+        } catch (RuntimeException e) {
+            done.completeExceptionally(e);
         }
     }
 
-    public boolean store(T t, String bucket, String key, String bucketType) throws RiakException {
+    private void fetched(Location loc, T t, Throwable e, MultiFetchResult<T> result,
+                         AtomicInteger remaining, CompletableFuture<MultiFetchResult<T>> done) {
+        if (e == null) {
+            result.found(loc, t);
+        } else if (isNotFound(e)) {
+            result.notFound(loc);
+        } else {
+            result.failed(loc, asRiakException(e));
+        }
+        if (remaining.decrementAndGet() == 0) {
+            done.complete(result);
+        }
+    }
+
+    public CompletableFuture<Boolean> storeAsync(RiakableObject obj) {
+        return storeByLocation(storeOf(obj), obj.getLocation(), options);
+    }
+
+    public CompletableFuture<Boolean> storeAsync(RiakableObject obj, RiakOptions callOptions) {
+        return storeByLocation(storeOf(obj), obj.getLocation(), options.merge(callOptions));
+    }
+
+    public CompletableFuture<Boolean> storeAsync(T t, String bucket, String key) {
+        Location loc = makeLocation(bucket, key);
+        return storeByLocation(storeOf(t, loc), loc, options);
+    }
+
+    public CompletableFuture<Boolean> storeAsync(T t, String bucket, String key, String bucketType) {
         Location loc = makeLocation(bucket, key, bucketType);
-        StoreValue.Builder storeOp = new StoreValue.Builder(t)
-                .withOption(StoreValue.Option.RETURN_BODY, true)
-                .withLocation(loc);
-        try {
-            client.execute(storeOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+        return storeByLocation(storeOf(t, loc), loc, options);
+    }
+
+    /**
+     * Creates {@code obj} in a single round trip, completing with
+     * {@link StoreResult#CONFLICT} if an object already exists at its
+     * location. Unlike checking {@link #found} and then storing, two
+     * concurrent creates can't both succeed.
+     */
+    public CompletableFuture<StoreResult> storeIfAbsentAsync(RiakableObject obj) {
+        return storeIfAbsentByLocation(obj, options);
+    }
+
+    public CompletableFuture<StoreResult> storeIfAbsentAsync(RiakableObject obj, RiakOptions callOptions) {
+        return storeIfAbsentByLocation(obj, options.merge(callOptions));
+    }
+
+    /**
+     * Stores {@code obj} only if the stored copy still has the vclock
+     * {@code obj} was fetched with, without the fetch {@link #update} does
+     * first. Completes with {@link StoreResult#CONFLICT} if the object was
+     * modified or deleted in the meantime. On success the object picks up
+     * its new vclock, so it can be conditionally stored again.
+     *
+     * @throws IllegalArgumentException if {@code obj} has no vclock, i.e.
+     *         wasn't fetched from Riak
+     */
+    public CompletableFuture<StoreResult> storeIfNotModifiedAsync(RiakableObject obj) {
+        return storeIfNotModifiedByLocation(obj, options);
+    }
+
+    public CompletableFuture<StoreResult> storeIfNotModifiedAsync(RiakableObject obj, RiakOptions callOptions) {
+        return storeIfNotModifiedByLocation(obj, options.merge(callOptions));
+    }
+
+    public CompletableFuture<Boolean> updateAsync(Location loc, UpdateValue.Update<T> update) {
+        return updateByLocation(loc, update, options);
+    }
+
+    public CompletableFuture<Boolean> updateAsync(Location loc, UpdateValue.Update<T> update, RiakOptions callOptions) {
+        return updateByLocation(loc, update, options.merge(callOptions));
+    }
+
+    public CompletableFuture<Boolean> updateAsync(T t, String bucket, String key) {
+        return clobberByLocation(makeLocation(bucket, key), t, options);
+    }
+
+    public CompletableFuture<Boolean> updateAsync(T t, String bucket, String key, String bucketType) {
+        return clobberByLocation(makeLocation(bucket, key, bucketType), t, options);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Boolean> updateAsync(RiakableObject obj) {
+        return clobberByLocation(obj.getLocation(), (T) obj, options);
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(Location loc) {
+        return deleteByLocation(loc, options);
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(Location loc, RiakOptions callOptions) {
+        return deleteByLocation(loc, options.merge(callOptions));
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(RiakableObject obj) {
+        return deleteByLocation(obj.getLocation(), options);
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(String bucket, String key) {
+        return deleteByLocation(makeLocation(bucket, key), options);
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(String bucket, String key, String bucketType) {
+        return deleteByLocation(makeLocation(bucket, key, bucketType), options);
+    }
+
+    public CompletableFuture<Boolean> foundAsync(Location loc) {
+        return foundByLocation(loc, options);
+    }
+
+    public CompletableFuture<Boolean> foundAsync(Location loc, RiakOptions callOptions) {
+        return foundByLocation(loc, options.merge(callOptions));
+    }
+
+    /**
+     * Lazily walks every match of {@code query}, requesting one page from
+     * Riak at a time. Abandoning the stream early leaves the remaining pages
+     * unfetched.
+     */
+    public <K> Stream<RiakIndexEntry<K>> queryIndex(RiakIndexQuery<K> query, String bucket) {
+        return queryIndex(query, RiakNamespaces.of(bucket));
+    }
+
+    public <K> Stream<RiakIndexEntry<K>> queryIndex(RiakIndexQuery<K> query, String bucket, String bucketType) {
+        return queryIndex(query, RiakNamespaces.of(bucketType, bucket));
+    }
+
+    /**
+     * Like {@link #queryIndex}, but fetches the matching objects, a page at
+     * a time with up to {@link #getMaxInFlight} fetches in flight. Objects
+     * deleted since they were indexed are skipped.
+     */
+    public <K> Stream<T> fetchByIndex(RiakIndexQuery<K> query, String bucket) {
+        return fetchByIndex(query, RiakNamespaces.of(bucket));
+    }
+
+    public <K> Stream<T> fetchByIndex(RiakIndexQuery<K> query, String bucket, String bucketType) {
+        return fetchByIndex(query, RiakNamespaces.of(bucketType, bucket));
+    }
+
+    /**
+     * Fetches the single page of results starting at the query's
+     * continuation, for callers that hand continuations out to clients.
+     */
+    public <K> RiakIndexPage<K> queryIndexPage(RiakIndexQuery<K> query, String bucket) throws RiakException {
+        return await(queryIndexPageAsync(query, bucket));
+    }
+
+    public <K> RiakIndexPage<K> queryIndexPage(RiakIndexQuery<K> query, String bucket, String bucketType)
+            throws RiakException {
+        return await(queryIndexPageAsync(query, bucket, bucketType));
+    }
+
+    public <K> CompletableFuture<RiakIndexPage<K>> queryIndexPageAsync(RiakIndexQuery<K> query, String bucket) {
+        return indexPage(query, RiakNamespaces.of(bucket), query.getContinuation());
+    }
+
+    public <K> CompletableFuture<RiakIndexPage<K>> queryIndexPageAsync(RiakIndexQuery<K> query, String bucket,
+                                                                       String bucketType) {
+        return indexPage(query, RiakNamespaces.of(bucketType, bucket), query.getContinuation());
+    }
+
+    public static Location makeLocation(String bucket, String key) {
+        return new Location(RiakNamespaces.of(bucket), key);
+    }
+
+    public static Location makeLocation(String bucket, String key, String bucketType) {
+        return new Location(RiakNamespaces.of(bucketType, bucket), key);
+    }
+
+    private CompletableFuture<Boolean> foundByLocation(Location loc, RiakOptions opts) {
+        return retried("found", loc, () -> foundUntimed(loc, opts));
+    }
+
+    private CompletableFuture<Boolean> foundUntimed(Location loc, RiakOptions opts) {
+        // Only the metadata is needed to tell whether the object exists
+        FetchValue.Builder fetchOp = opts.applyTo(new FetchValue.Builder(loc))
+                .withOption(FetchValue.Option.HEAD, true);
+        return execute(fetchOp.build()).thenApply(res -> !res.isNotFound());
+    }
+
+    private CompletableFuture<T> fetchByLocation(Location loc, RiakOptions opts) {
+        return retried("fetch", loc, () -> fetchCachedOrLoad(loc, opts));
+    }
+
+    private CompletableFuture<T> fetchCachedOrLoad(Location loc, RiakOptions opts) {
+        if (cache == null) {
+            return fetchUncached(loc, opts);
         }
+        // Read first, so that a write landing while this fetch is in flight
+        // keeps its result out of the cache
+        long generation = cache.generation(loc);
+        RiakCache.Entry<T> cached = cache.lookup(loc);
+        if (cached != null && !cache.isStale(cached)) {
+            return CompletableFuture.completedFuture(cached.value);
+        }
+
+        if (inFlight == null) {
+            return load(loc, cached, opts, generation);
+        }
+        return coalesce(loc, cached, opts, generation);
     }
 
-    public boolean update(Location loc, UpdateValue.Update update) throws RiakException {
-        UpdateValue.Builder updateOp = new UpdateValue.Builder(loc)
-                .withFetchOption(FetchValue.Option.DELETED_VCLOCK, true)
-                .withUpdate(update);
+    private CompletableFuture<T> fetchUncached(Location loc, RiakOptions opts) {
+        if (inFlight == null) {
+            return load(loc, null, opts, UNCACHED);
+        }
+        return coalesce(loc, null, opts, UNCACHED);
+    }
 
+    private CompletableFuture<T> load(Location loc, RiakCache.Entry<T> cached, RiakOptions opts, long generation) {
+        return cached == null ? fetchFromRiak(loc, opts, generation) : revalidate(loc, cached, opts, generation);
+    }
+
+    private CompletableFuture<T> coalesce(Location loc, RiakCache.Entry<T> cached, RiakOptions opts,
+                                          long generation) {
+        CompletableFuture<T> promise = new CompletableFuture<>();
+        CompletableFuture<T> leader = inFlight.putIfAbsent(loc, promise);
+        if (leader != null) {
+            return leader.thenApply(t -> t);
+        }
+
+        CompletableFuture<T> loaded;
         try {
-            UpdateValue.Response res = client.execute(updateOp.build());
-            return res.wasUpdated();
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+            loaded = load(loc, cached, opts, generation);
+        } catch (RuntimeException e) {
+            inFlight.remove(loc, promise);
+            promise.completeExceptionally(e);
+            return promise;
         }
 
+        loaded.whenComplete((t, e) -> {
+            inFlight.remove(loc, promise);
+            if (e != null) {
+                promise.completeExceptionally(e);
+            } else {
+                promise.complete(t);
+            }
+        });
+        return promise;
     }
 
-    public boolean update(T t, String bucket, String key) throws RiakException {
-        Location loc = new Location(new Namespace(bucket), key);
-        UpdateValue.Builder updateOp = new UpdateValue.Builder(loc)
-                .withFetchOption(FetchValue.Option.DELETED_VCLOCK, true)
-                .withUpdate(UpdateValue.Update.clobberUpdate(t));
+    private CompletableFuture<T> revalidate(Location loc, RiakCache.Entry<T> cached, RiakOptions opts,
+                                            long generation) {
+        FetchValue.Builder fetchOp = opts.applyTo(new FetchValue.Builder(loc))
+                .withOption(FetchValue.Option.IF_MODIFIED, cached.vClock);
+        return execute(fetchOp.build()).thenApply(res -> {
+            if (res.isUnchanged()) {
+                cache.touch(loc, cached, generation);
+                return cached.value;
+            }
+            return valueOf(loc, res, generation);
+        });
+    }
 
-        try {
-            UpdateValue.Response res = client.execute(updateOp.build());
-            return res.wasUpdated();
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+    private CompletableFuture<T> fetchFromRiak(Location loc, RiakOptions opts, long generation) {
+        FetchValue.Builder fetchOp = opts.applyTo(new FetchValue.Builder(loc));
+        if (hedging == null) {
+            return execute(fetchOp.build()).thenApply(res -> valueOf(loc, res, generation));
         }
+        return hedging.execute(() -> execute(fetchOp.build())).thenApply(res -> valueOf(loc, res, generation));
     }
 
-    public boolean update(T t, String bucket, String key, String bucketType) throws RiakException {
-        Location loc = new Location(new Namespace(bucketType, bucket), key);
-        UpdateValue.Builder updateOp = new UpdateValue.Builder(loc)
-                .withFetchOption(FetchValue.Option.DELETED_VCLOCK, true)
-                .withUpdate(UpdateValue.Update.clobberUpdate(t));
+    private T valueOf(Location loc, FetchValue.Response res, long generation) {
+        if (res.isNotFound()) {
+            notFound(loc);
+        } else {
+            siblings(loc, res);
+        }
 
+        T t;
         try {
-            UpdateValue.Response res = client.execute(updateOp.build());
-            return res.wasUpdated();
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+            t = resolve(loc, res);
+        } catch (ExecutionException e) {
+            throw new CompletionException(new RiakException(e));
+        }
+
+        if (t == null) {
+            if (cache != null) {
+                cache.invalidate(loc);
+            }
+            throw new CompletionException(new NotFoundException());
         }
+
+        if (cache != null && generation != UNCACHED) {
+            cache.put(loc, t, res.getVectorClock(), generation);
+        }
+        return t;
     }
 
-    public boolean update(RiakableObject obj) throws RiakException {
-        Location loc = obj.getLocation();
-        UpdateValue.Builder updateOp = new UpdateValue.Builder(loc)
-                .withFetchOption(FetchValue.Option.DELETED_VCLOCK, true)
-                .withUpdate(UpdateValue.Update.clobberUpdate(obj));
+    /**
+     * Converts the fetched siblings and picks one with the resolver for
+     * {@code loc}, timing the resolution when there is more than one.
+     */
+    private T resolve(Location loc, FetchValue.Response res) throws UnresolvedConflictException {
+        List<T> siblings = converter == null ? res.getValues(clazz) : convert(loc, res);
+        if (siblings.size() < 2) {
+            return siblings.isEmpty() ? null : siblings.get(0);
+        }
 
+        ConflictResolver<T> resolver = resolverFor(loc.getNamespace());
+        if (metrics == null) {
+            return resolver.resolve(siblings);
+        }
+        Timer.Context context = metrics.resolving(loc.getNamespace());
         try {
-            UpdateValue.Response res = client.execute(updateOp.build());
-            return res.wasUpdated();
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+            return resolver.resolve(siblings);
+        } finally {
+            context.stop();
         }
     }
 
-    public boolean delete(Location loc) throws RiakException {
-        DeleteValue.Builder deleteOp = new DeleteValue.Builder(loc);
-        try {
-            client.execute(deleteOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+    private List<T> convert(Location loc, FetchValue.Response res) {
+        List<T> values = new ArrayList<>(res.getNumberOfValues());
+        for (RiakObject obj : res.getValues()) {
+            values.add(converter.toDomain(obj, loc));
         }
+        return values;
     }
 
-    public boolean delete(RiakableObject obj) throws RiakException {
-        Location loc = obj.getLocation();
-        DeleteValue.Builder deleteOp = new DeleteValue.Builder(loc);
-        try {
-            client.execute(deleteOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+    private StoreValue.Builder storeOf(RiakableObject obj) {
+        return converter == null ? new StoreValue.Builder(obj) : storeOf(obj, obj.getLocation());
+    }
+
+    /**
+     * A store of {@code value} at {@code loc}, converted by this DAO's
+     * converter if it has one and by the client's otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private StoreValue.Builder storeOf(Object value, Location loc) {
+        if (converter == null) {
+            return new StoreValue.Builder(value).withLocation(loc);
         }
+        RiakObject content = converter.fromDomain((T) value, loc.getNamespace(), loc.getKey()).getRiakObject();
+        return new StoreValue.Builder(content).withLocation(loc);
     }
 
-    public boolean delete(String bucket, String key) throws RiakException {
-        Location loc = makeLocation(bucket, key);
-        DeleteValue.Builder deleteOp = new DeleteValue.Builder(loc);
-        try {
-            client.execute(deleteOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+    private ConflictResolver<T> resolverFor(Namespace ns) {
+        ConflictResolver<T> forBucket = bucketResolvers.get(ns);
+        if (forBucket != null) {
+            return forBucket;
         }
+        return resolver != null ? resolver : ConflictResolverFactory.getInstance().getConflictResolver(clazz);
     }
 
-    public boolean delete(String bucket, String key, String bucketType) throws RiakException {
-        Location loc = makeLocation(bucket, key, bucketType);
-        DeleteValue.Builder deleteOp = new DeleteValue.Builder(loc);
-        try {
-            client.execute(deleteOp.build());
-            return found(loc);
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+    private CompletableFuture<Boolean> storeByLocation(StoreValue.Builder storeOp, Location loc, RiakOptions opts) {
+        return timed("store", loc, () -> storeUntimed(opts.applyTo(storeOp), loc, opts));
+    }
+
+    private CompletableFuture<Boolean> storeUntimed(StoreValue.Builder storeOp, Location loc, RiakOptions opts) {
+        if (writePolicy == WritePolicy.VERIFY_BY_FETCH) {
+            return invalidating(loc, execute(storeOp.build()).thenCompose(res -> foundUntimed(loc, opts)));
         }
+        storeOp.withOption(StoreValue.Option.RETURN_HEAD, true);
+        return invalidating(loc, execute(storeOp.build()).thenApply(StoreValue.Response::hasValues));
     }
 
-    public static Location makeLocation(String bucket, String key) {
-        return new Location(new Namespace(bucket), key);
+    private CompletableFuture<StoreResult> storeIfAbsentByLocation(RiakableObject obj, RiakOptions opts) {
+        return storeConditionally(obj, opts, StoreValue.Option.IF_NONE_MATCH, "match_found");
     }
 
-    public static Location makeLocation(String bucket, String key, String bucketType) {
-        return new Location(new Namespace(bucketType, bucket), key);
+    private CompletableFuture<StoreResult> storeIfNotModifiedByLocation(RiakableObject obj, RiakOptions opts) {
+        if (obj.vClock == null) {
+            throw new IllegalArgumentException("Object has no vclock; fetch it before a conditional store");
+        }
+        return storeConditionally(obj, opts, StoreValue.Option.IF_NOT_MODIFIED, "modified", "notfound");
     }
 
-    private T fetchByLocation(Location loc) throws RiakException {
-        FetchValue.Builder fetchOp = new FetchValue.Builder(loc);
-        try {
-            T t = client.execute(fetchOp.build()).getValue(clazz);
+    /**
+     * Stores {@code obj} with {@code precondition} set, reporting a
+     * rejection with one of {@code conflictMessages} as a conflict. Only
+     * stores guarded by a vector clock are retried; a retried create could
+     * report its own earlier attempt as a conflict.
+     */
+    private CompletableFuture<StoreResult> storeConditionally(RiakableObject obj, RiakOptions opts,
+                                                              StoreValue.Option<Boolean> precondition,
+                                                              String... conflictMessages) {
+        Location loc = obj.getLocation();
+        StoreValue.Builder storeOp = opts.applyTo(storeOf(obj))
+                .withOption(precondition, true)
+                .withOption(StoreValue.Option.RETURN_HEAD, true);
+        Supplier<CompletableFuture<StoreResult>> store = () -> invalidating(loc, execute(storeOp.build()))
+                .handle((res, e) -> {
+                    if (e == null) {
+                        obj.vClock = res.getVectorClock();
+                        return StoreResult.STORED;
+                    }
+                    if (preconditionFailed(e, conflictMessages)) {
+                        storeConflict(loc);
+                        return StoreResult.CONFLICT;
+                    }
+                    throw new CompletionException(asRiakException(e));
+                });
+        if (precondition == StoreValue.Option.IF_NOT_MODIFIED) {
+            return retried("store", loc, store);
+        }
+        return timed("store", loc, store);
+    }
 
-            if (t == null) {
-                throw new RiakException("Object is null");
+    private CompletableFuture<Boolean> clobberByLocation(Location loc, T t, RiakOptions opts) {
+        return updateByLocation(loc, UpdateValue.Update.clobberUpdate(t), opts);
+    }
+
+    /**
+     * The same fetch, apply, store-with-vclock cycle as the client's
+     * {@link UpdateValue}, which can only resolve siblings with the
+     * JVM-wide resolver for the class.
+     */
+    private CompletableFuture<Boolean> updateByLocation(Location loc, UpdateValue.Update<T> update, RiakOptions opts) {
+        FetchValue.Builder fetchOp = opts.applyTo(new FetchValue.Builder(loc))
+                .withOption(FetchValue.Option.DELETED_VCLOCK, true);
+        return timed("update", loc, () -> invalidating(loc, execute(fetchOp.build()).thenCompose(res -> {
+            T current = null;
+            if (!res.isNotFound()) {
+                siblings(loc, res);
+                try {
+                    current = resolve(loc, res);
+                } catch (ExecutionException e) {
+                    throw new CompletionException(new RiakException(e));
+                }
             }
 
-            return t;
-        } catch (ExecutionException | InterruptedException e) {
-            throw new RiakException(e);
+            T updated = update.apply(current);
+            if (!update.isModified()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            AnnotationUtil.setVClock(updated, res.getVectorClock());
+            // clobberUpdate() erases T, so the client needs to be told what to convert the value from
+            StoreValue.Builder storeOp = opts.applyTo(converter == null
+                    ? new StoreValue.Builder(updated, typeReference).withLocation(loc)
+                    : storeOf(updated, loc))
+                    .withVectorClock(res.getVectorClock());
+            return execute(storeOp.build()).thenApply(stored -> true);
+        })));
+    }
+
+    private CompletableFuture<Boolean> deleteByLocation(Location loc, RiakOptions opts) {
+        return retried("delete", loc, () -> deleteUntimed(loc, opts));
+    }
+
+    private CompletableFuture<Boolean> deleteUntimed(Location loc, RiakOptions opts) {
+        DeleteValue.Builder deleteOp = opts.applyTo(new DeleteValue.Builder(loc));
+        if (writePolicy == WritePolicy.VERIFY_BY_FETCH) {
+            return invalidating(loc, execute(deleteOp.build())
+                    .thenCompose(res -> foundUntimed(loc, opts))
+                    .thenApply(found -> !found));
         }
+        return invalidating(loc, execute(deleteOp.build()).thenApply(res -> true));
     }
 
-    public boolean found(Location loc) throws RiakException {
-        FetchValue.Builder fetchOp = new FetchValue.Builder(loc);
+    private <K> Stream<RiakIndexEntry<K>> queryIndex(RiakIndexQuery<K> query, Namespace ns) {
+        return indexPages(query, ns).flatMap(page -> page.getEntries().stream());
+    }
+
+    private <K> Stream<T> fetchByIndex(RiakIndexQuery<K> query, Namespace ns) {
+        return indexPages(query, ns).flatMap(page -> {
+            Set<Location> locs = new LinkedHashSet<>();
+            for (RiakIndexEntry<K> entry : page.getEntries()) {
+                locs.add(entry.getLocation());
+            }
+            MultiFetchResult<T> result = fetchAllAsync(locs).join();
+            if (result.hasFailures()) {
+                throw new CompletionException(result.getFailures().values().iterator().next());
+            }
+            return locs.stream().map(result.getValues()::get).filter(Objects::nonNull);
+        });
+    }
+
+    private <K> Stream<RiakIndexPage<K>> indexPages(RiakIndexQuery<K> query, Namespace ns) {
+        Iterator<RiakIndexPage<K>> pages =
+                new IndexPageIterator<>(query.getContinuation(), continuation -> indexPage(query, ns, continuation));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false);
+    }
+
+    private <K> CompletableFuture<RiakIndexPage<K>> indexPage(RiakIndexQuery<K> query, Namespace ns,
+                                                              String continuation) {
+        // Built inside the future so that a malformed continuation token
+        // surfaces as a RiakException like any other failed query.
+        return retried("index", ns, () -> CompletableFuture.completedFuture(continuation)
+                .thenCompose(cont -> execute(query.command(ns, cont)))
+                .thenApply(query::toPage));
+    }
+
+    /**
+     * Drops the cached copy of {@code loc} once a write to it has finished,
+     * whether or not it succeeded, since a failed write may still have been
+     * applied on some replicas.
+     */
+    private <R> CompletableFuture<R> invalidating(Location loc, CompletableFuture<R> write) {
+        if (cache == null) {
+            return write;
+        }
+        cache.invalidate(loc);
+        return write.whenComplete((r, e) -> cache.invalidate(loc));
+    }
+
+    private <R> CompletableFuture<R> timed(String op, Location loc, Supplier<CompletableFuture<R>> call) {
+        return timed(op, loc.getNamespace(), call);
+    }
+
+    /**
+     * Runs {@code call} as one DAO operation: timed if there are metrics,
+     * and behind the circuit breakers if there are any. Rejected calls are
+     * not timed.
+     */
+    private <R> CompletableFuture<R> timed(String op, Namespace ns, Supplier<CompletableFuture<R>> call) {
+        Supplier<CompletableFuture<R>> timedCall = metrics == null ? call : () -> metrics.time(op, ns, call);
+        return circuitBreakers == null ? timedCall.get()
+                : circuitBreakers.execute(op, ns, timedCall, RiakDAO::isFailure);
+    }
+
+    /**
+     * {@link #timed}, with transient failures retried under the retry
+     * policy. Only for operations that are safe to repeat.
+     */
+    private <R> CompletableFuture<R> retried(String op, Location loc, Supplier<CompletableFuture<R>> call) {
+        return retried(op, loc.getNamespace(), call);
+    }
+
+    private <R> CompletableFuture<R> retried(String op, Namespace ns, Supplier<CompletableFuture<R>> call) {
+        return retryPolicy == null ? timed(op, ns, call) : retryPolicy.execute(() -> timed(op, ns, call));
+    }
+
+    private void notFound(Location loc) {
+        if (metrics != null) {
+            metrics.notFound(loc.getNamespace());
+        }
+    }
+
+    private void storeConflict(Location loc) {
+        if (metrics != null) {
+            metrics.storeConflict(loc.getNamespace());
+        }
+    }
+
+    private void siblings(Location loc, FetchValue.Response res) {
+        if (metrics != null) {
+            metrics.siblings(loc.getNamespace(), res.getNumberOfValues());
+        }
+    }
+
+    /**
+     * Hands the command to the client's non-blocking API, so no caller
+     * thread is parked while Riak is working, and completes the returned
+     * future on {@code executor} rather than the event loop thread the
+     * {@link RiakFuture} listener runs on. Failures are surfaced as a
+     * {@link RiakException} cause.
+     */
+    private <R, S> CompletableFuture<R> execute(RiakCommand<R, S> command) {
+        return execute(client, command, executor);
+    }
+
+    static <R, S> CompletableFuture<R> execute(RiakClient client, RiakCommand<R, S> command, Executor executor) {
+        CompletableFuture<R> promise = new CompletableFuture<>();
+        RiakFuture<R, S> future = client.executeAsync(command);
+        future.addListener(f -> {
+            try {
+                executor.execute(() -> {
+                    if (f.isSuccess()) {
+                        promise.complete(f.getNow());
+                    } else {
+                        promise.completeExceptionally(new RiakException(f.cause()));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                promise.completeExceptionally(new RiakException(e));
+            }
+        });
+        return promise;
+    }
+
+    static <R> R await(CompletableFuture<R> future) throws RiakException {
         try {
-            FetchValue.Response res = client.execute(fetchOp.build());
-            return !res.isNotFound();
-        } catch (ExecutionException | InterruptedException e) {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw asRiakException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RiakException(e);
         }
     }
+
+    /**
+     * Whether {@code t} says something about Riak's health, rather than
+     * being an ordinary answer such as a missing object or a rejected
+     * conditional write.
+     */
+    static boolean isFailure(Throwable t) {
+        return !isNotFound(t) && !preconditionFailed(t, "modified", "match_found", "notfound");
+    }
+
+    static boolean isNotFound(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotFoundException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether {@code t} is Riak rejecting a conditional write with one of
+     * the given error messages, rather than an actual failure.
+     */
+    static boolean preconditionFailed(Throwable t, String... messages) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RiakResponseException) {
+                return Arrays.asList(messages).contains(cause.getMessage());
+            }
+        }
+        return false;
+    }
+
+    static RiakException asRiakException(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t instanceof RiakException ? (RiakException) t : new RiakException(t);
+    }
+
+    /**
+     * A fetch that found nothing, as opposed to one that failed.
+     */
+    private static class NotFoundException extends RiakException {
+        private static final long serialVersionUID = 1L;
+
+        NotFoundException() {
+            super("Object is null");
+        }
+    }
 }
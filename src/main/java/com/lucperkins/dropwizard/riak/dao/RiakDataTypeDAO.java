@@ -0,0 +1,275 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakCommand;
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.api.commands.datatypes.Context;
+import com.basho.riak.client.api.commands.datatypes.CounterUpdate;
+import com.basho.riak.client.api.commands.datatypes.FetchCounter;
+import com.basho.riak.client.api.commands.datatypes.FetchDatatype;
+import com.basho.riak.client.api.commands.datatypes.FetchMap;
+import com.basho.riak.client.api.commands.datatypes.FetchSet;
+import com.basho.riak.client.api.commands.datatypes.MapUpdate;
+import com.basho.riak.client.api.commands.datatypes.SetUpdate;
+import com.basho.riak.client.api.commands.datatypes.UpdateCounter;
+import com.basho.riak.client.api.commands.datatypes.UpdateMap;
+import com.basho.riak.client.api.commands.datatypes.UpdateSet;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.crdt.ops.CrdtOp;
+import com.basho.riak.client.core.query.crdt.ops.MapOp;
+import com.basho.riak.client.core.query.crdt.ops.SetOp;
+import com.basho.riak.client.core.query.crdt.types.RiakMap;
+import com.basho.riak.client.core.util.BinaryValue;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import static com.lucperkins.dropwizard.riak.dao.RiakDAO.await;
+
+/**
+ * Counters, sets and maps stored as Riak data types. Increments, adds and
+ * map updates are sent to Riak as operations and merged server-side, so
+ * there's no read-before-write and concurrent updates are never lost the way
+ * they can be with {@link RiakDAO#update}. Removals need the causal context
+ * of the value they remove from, so updates that remove something fetch it
+ * first. Removes from a set that doesn't exist yet are dropped; the client
+ * rejects removes from a map that doesn't exist.
+ *
+ * <p>Data types live in bucket types created with the matching
+ * {@code datatype} property; locations must name one.</p>
+ */
+public class RiakDataTypeDAO {
+    private final RiakClient client;
+    private RiakMetrics metrics;
+    private RiakOptions options = RiakOptions.DEFAULT;
+    private CircuitBreakers circuitBreakers;
+    private Executor executor = RiakDAO.DEFAULT_EXECUTOR;
+
+    public RiakDataTypeDAO(RiakClient client) {
+        this.client = client;
+    }
+
+    public RiakDataTypeDAO withMetrics(MetricRegistry registry) {
+        return withMetrics(new RiakMetrics(registry, RiakDataTypeDAO.class, "datatypes"));
+    }
+
+    public RiakDataTypeDAO withMetrics(RiakMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public RiakMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RiakDataTypeDAO withOptions(RiakOptions options) {
+        this.options = options == null ? RiakOptions.DEFAULT : options;
+        return this;
+    }
+
+    public RiakOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Guards every call with the given breakers and bulkheads. See
+     * {@link RiakDAO#withCircuitBreakers}.
+     */
+    public RiakDataTypeDAO withCircuitBreakers(CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+        return this;
+    }
+
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    /**
+     * Where this DAO's futures are completed. See
+     * {@link RiakDAO#withExecutor}.
+     */
+    public RiakDataTypeDAO withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public long fetchCounter(Location loc) throws RiakException {
+        return await(fetchCounterAsync(loc));
+    }
+
+    public long increment(Location loc, long delta) throws RiakException {
+        return await(incrementAsync(loc, delta));
+    }
+
+    public Set<String> fetchSet(Location loc) throws RiakException {
+        return await(fetchSetAsync(loc));
+    }
+
+    public boolean addToSet(Location loc, Collection<String> values) throws RiakException {
+        return await(addToSetAsync(loc, values));
+    }
+
+    public boolean removeFromSet(Location loc, Collection<String> values) throws RiakException {
+        return await(removeFromSetAsync(loc, values));
+    }
+
+    public boolean updateSet(Location loc, SetUpdate update) throws RiakException {
+        return await(updateSetAsync(loc, update));
+    }
+
+    public RiakMap fetchMap(Location loc) throws RiakException {
+        return await(fetchMapAsync(loc));
+    }
+
+    public boolean updateMap(Location loc, MapUpdate update) throws RiakException {
+        return await(updateMapAsync(loc, update));
+    }
+
+    /**
+     * Completes with the counter's value, or 0 if it has never been
+     * incremented.
+     */
+    public CompletableFuture<Long> fetchCounterAsync(Location loc) {
+        FetchCounter fetchOp = options.applyTo(new FetchCounter.Builder(loc).build());
+        return timed("fetchCounter", loc, () -> execute(fetchOp))
+                .thenApply(res -> res.getDatatype().view());
+    }
+
+    /**
+     * Adds {@code delta} (which may be negative) to the counter and completes
+     * with its new value.
+     */
+    public CompletableFuture<Long> incrementAsync(Location loc, long delta) {
+        UpdateCounter.Builder updateOp = options.applyTo(new UpdateCounter.Builder(loc, new CounterUpdate(delta)))
+                .withReturnDatatype(true);
+        return timed("updateCounter", loc, () -> execute(updateOp.build()))
+                .thenApply(res -> res.getDatatype().view());
+    }
+
+    /**
+     * Completes with the set's members, or an empty set if it doesn't exist.
+     */
+    public CompletableFuture<Set<String>> fetchSetAsync(Location loc) {
+        FetchSet fetchOp = options.applyTo(new FetchSet.Builder(loc).build());
+        return timed("fetchSet", loc, () -> execute(fetchOp))
+                .thenApply(res -> {
+                    Set<String> members = new LinkedHashSet<>();
+                    for (BinaryValue member : res.getDatatype().view()) {
+                        members.add(member.toStringUtf8());
+                    }
+                    return members;
+                });
+    }
+
+    public CompletableFuture<Boolean> addToSetAsync(Location loc, Collection<String> values) {
+        SetUpdate update = new SetUpdate();
+        for (String value : values) {
+            update.add(value);
+        }
+        return updateSetAsync(loc, update);
+    }
+
+    public CompletableFuture<Boolean> removeFromSetAsync(Location loc, Collection<String> values) {
+        SetUpdate update = new SetUpdate();
+        for (String value : values) {
+            update.remove(value);
+        }
+        return updateSetAsync(loc, update);
+    }
+
+    public CompletableFuture<Boolean> updateSetAsync(Location loc, SetUpdate update) {
+        return timed("updateSet", loc, () -> contextFor(update.getOp(), () -> new FetchSet.Builder(loc).build())
+                .thenCompose(context -> {
+                    UpdateSet.Builder updateOp;
+                    if (context != null) {
+                        updateOp = options.applyTo(new UpdateSet.Builder(loc, update)).withContext(context);
+                    } else if (update.getRemoves().isEmpty()) {
+                        updateOp = options.applyTo(new UpdateSet.Builder(loc, update));
+                    } else {
+                        // There's nothing to remove from a set that doesn't exist
+                        SetUpdate adds = new SetUpdate();
+                        update.getAdds().forEach(adds::add);
+                        if (adds.getAdds().isEmpty()) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        updateOp = options.applyTo(new UpdateSet.Builder(loc, adds));
+                    }
+                    return execute(updateOp.build());
+                })
+                .thenApply(res -> true));
+    }
+
+    /**
+     * Completes with the map, which is empty if it doesn't exist.
+     */
+    public CompletableFuture<RiakMap> fetchMapAsync(Location loc) {
+        FetchMap fetchOp = options.applyTo(new FetchMap.Builder(loc).build());
+        return timed("fetchMap", loc, () -> execute(fetchOp))
+                .thenApply(FetchDatatype.Response::getDatatype);
+    }
+
+    public CompletableFuture<Boolean> updateMapAsync(Location loc, MapUpdate update) {
+        return timed("updateMap", loc, () -> contextFor(update.getOp(), () -> new FetchMap.Builder(loc).build())
+                .thenCompose(context -> {
+                    UpdateMap.Builder updateOp = options.applyTo(new UpdateMap.Builder(loc, update));
+                    if (context != null) {
+                        updateOp.withContext(context);
+                    }
+                    return execute(updateOp.build());
+                })
+                .thenApply(res -> true));
+    }
+
+    /**
+     * Fetches the current context if {@code op} removes anything, and
+     * completes with {@code null} straight away otherwise (or if the value
+     * doesn't exist yet).
+     */
+    private <S extends FetchDatatype.Response<?>> CompletableFuture<Context> contextFor(
+            CrdtOp op, Supplier<FetchDatatype<?, S, Location>> fetchOp) {
+        if (!removes(op)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        FetchDatatype<?, S, Location> command = options.applyTo(fetchOp.get());
+        return execute(command)
+                .thenApply(res -> res.hasContext() ? res.getContext() : null);
+    }
+
+    private static boolean removes(CrdtOp op) {
+        if (op instanceof SetOp) {
+            return !((SetOp) op).getRemoves().isEmpty();
+        }
+        if (op instanceof MapOp) {
+            MapOp mapOp = (MapOp) op;
+            if (!mapOp.getRemoves().isEmpty()) {
+                return true;
+            }
+            for (MapOp.MapUpdate update : mapOp.getUpdates()) {
+                if (removes(update.op)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private <R> CompletableFuture<R> timed(String op, Location loc, Supplier<CompletableFuture<R>> call) {
+        Supplier<CompletableFuture<R>> timedCall = metrics == null ? call
+                : () -> metrics.time(op, loc.getNamespace(), call);
+        return circuitBreakers == null ? timedCall.get()
+                : circuitBreakers.execute(op, loc.getNamespace(), timedCall, RiakDAO::isFailure);
+    }
+
+    private <R, S> CompletableFuture<R> execute(RiakCommand<R, S> command) {
+        return RiakDAO.execute(client, command, executor);
+    }
+}
@@ -0,0 +1,177 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.api.commands.datatypes.MapUpdate;
+import com.basho.riak.client.core.query.crdt.types.RiakDatatype;
+import com.basho.riak.client.core.query.crdt.types.RiakMap;
+import com.basho.riak.client.core.util.BinaryValue;
+import com.codahale.metrics.MetricRegistry;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The {@link RiakResourceDriver} counterpart for {@link RiakDataTypeDAO}:
+ * turns counter, set and map operations into HTTP responses.
+ */
+public class RiakDataTypeResourceDriver {
+    private final RiakDataTypeDAO riak;
+    private MetricRegistry metrics;
+
+    public RiakDataTypeResourceDriver(RiakClient client) {
+        this(new RiakDataTypeDAO(client));
+    }
+
+    public RiakDataTypeResourceDriver(RiakDataTypeDAO riak) {
+        this.riak = riak;
+    }
+
+    /**
+     * Guards the underlying DAO with {@code circuitBreakers}. As with
+     * {@link RiakResourceDriver#withCircuitBreakers}, calls they reject get
+     * a 503 with a {@code Retry-After} header when the breaker knows when it
+     * will let calls through again.
+     */
+    public RiakDataTypeResourceDriver withCircuitBreakers(CircuitBreakers circuitBreakers) {
+        riak.withCircuitBreakers(circuitBreakers);
+        return this;
+    }
+
+    /**
+     * Instruments the underlying DAO (unless it already has metrics) and
+     * meters the error responses this driver produces, by status code.
+     */
+    public RiakDataTypeResourceDriver withMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+        if (riak.getMetrics() == null) {
+            riak.withMetrics(metrics);
+        }
+        return this;
+    }
+
+    public long getCounter(String bucket, String key, String bucketType) {
+        try {
+            return riak.fetchCounter(RiakDAO.makeLocation(bucket, key, bucketType));
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Responds with the counter's new value.
+     */
+    public Response increment(String bucket, String key, String bucketType, long delta) {
+        try {
+            long value = riak.increment(RiakDAO.makeLocation(bucket, key, bucketType), delta);
+            return Response.ok(value).build();
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public Set<String> getSet(String bucket, String key, String bucketType) {
+        try {
+            return riak.fetchSet(RiakDAO.makeLocation(bucket, key, bucketType));
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public Response addToSet(String bucket, String key, String bucketType, Collection<String> values) {
+        try {
+            return statusIf(riak.addToSet(RiakDAO.makeLocation(bucket, key, bucketType), values), 204);
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public Response removeFromSet(String bucket, String key, String bucketType, Collection<String> values) {
+        try {
+            return statusIf(riak.removeFromSet(RiakDAO.makeLocation(bucket, key, bucketType), values), 204);
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Returns the map in the same shape as Riak's HTTP API: each field is
+     * suffixed with its type ({@code _counter}, {@code _set},
+     * {@code _register}, {@code _flag} or {@code _map}), so it serializes
+     * to plain JSON.
+     */
+    public Map<String, Object> getMap(String bucket, String key, String bucketType) {
+        try {
+            return toJson(riak.fetchMap(RiakDAO.makeLocation(bucket, key, bucketType)));
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public Response updateMap(String bucket, String key, String bucketType, MapUpdate update) {
+        try {
+            return statusIf(riak.updateMap(RiakDAO.makeLocation(bucket, key, bucketType), update), 204);
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    private static Map<String, Object> toJson(RiakMap map) {
+        Map<String, Object> json = new TreeMap<>();
+        for (Map.Entry<BinaryValue, List<RiakDatatype>> field : map.view().entrySet()) {
+            String name = field.getKey().toStringUtf8();
+            for (RiakDatatype value : field.getValue()) {
+                if (value.isCounter()) {
+                    json.put(name + "_counter", value.getAsCounter().view());
+                } else if (value.isSet()) {
+                    List<String> members = new ArrayList<>();
+                    for (BinaryValue member : value.getAsSet().view()) {
+                        members.add(member.toStringUtf8());
+                    }
+                    json.put(name + "_set", members);
+                } else if (value.isRegister()) {
+                    json.put(name + "_register", value.getAsRegister().view().toStringUtf8());
+                } else if (value.isFlag()) {
+                    json.put(name + "_flag", value.getAsFlag().view());
+                } else if (value.isMap()) {
+                    json.put(name + "_map", toJson(value.getAsMap()));
+                }
+            }
+        }
+        return json;
+    }
+
+    private Response statusIf(boolean succeeded, int status) {
+        if (succeeded) {
+            return Response.status(status).build();
+        }
+        throw failure(Response.Status.BAD_REQUEST);
+    }
+
+    private WebApplicationException failure(Response.Status status) {
+        mark(status.getStatusCode());
+        return new WebApplicationException(status);
+    }
+
+    private WebApplicationException failure(RiakException e, Response.Status status) {
+        CallRejectedException rejected = RiakResourceDriver.rejection(e);
+        if (rejected == null) {
+            return failure(status);
+        }
+        mark(503);
+        return new WebApplicationException(rejected, RiakResourceDriver.unavailableResponse(rejected));
+    }
+
+    private void mark(int status) {
+        if (metrics != null) {
+            metrics.meter(MetricRegistry.name(RiakDataTypeResourceDriver.class, "responses",
+                    String.valueOf(status))).mark();
+        }
+    }
+}
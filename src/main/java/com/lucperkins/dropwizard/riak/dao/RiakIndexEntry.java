@@ -0,0 +1,38 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.core.query.Location;
+
+/**
+ * A single secondary index match: the object's location and, if the query
+ * asked for them, the index term it matched on.
+ */
+public class RiakIndexEntry<K> {
+    private final Location location;
+    private final K term;
+
+    RiakIndexEntry(Location location, K term) {
+        this.location = location;
+        this.term = term;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    public String getKey() {
+        return location.getKeyAsString();
+    }
+
+    /**
+     * The matching term, or {@code null} unless
+     * {@link RiakIndexQuery#withReturnTerms} was set on a range query.
+     */
+    public K getTerm() {
+        return term;
+    }
+
+    @Override
+    public String toString() {
+        return term == null ? getKey() : getKey() + "=" + term;
+    }
+}
@@ -0,0 +1,35 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of secondary index results, plus the continuation token for the
+ * next page if there is one.
+ */
+public class RiakIndexPage<K> {
+    private final List<RiakIndexEntry<K>> entries;
+    private final String continuation;
+
+    RiakIndexPage(List<RiakIndexEntry<K>> entries, String continuation) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.continuation = continuation;
+    }
+
+    public List<RiakIndexEntry<K>> getEntries() {
+        return entries;
+    }
+
+    public boolean hasContinuation() {
+        return continuation != null;
+    }
+
+    /**
+     * An opaque, URL-safe token that can be handed back to
+     * {@link RiakIndexQuery#withContinuation} to fetch the next page, or
+     * {@code null} on the last page.
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+}
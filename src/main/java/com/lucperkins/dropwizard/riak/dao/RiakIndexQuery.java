@@ -0,0 +1,139 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.RiakCommand;
+import com.basho.riak.client.api.commands.indexes.BinIndexQuery;
+import com.basho.riak.client.api.commands.indexes.IntIndexQuery;
+import com.basho.riak.client.api.commands.indexes.SecondaryIndexQuery;
+import com.basho.riak.client.core.query.Namespace;
+import com.basho.riak.client.core.util.BinaryValue;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * An exact match or range query on a secondary index, as declared with
+ * {@code @RiakIndex}. Index names are given without the {@code _int} or
+ * {@code _bin} suffix; the type of the value decides which one is queried.
+ *
+ * <p>Results are fetched a page at a time using Riak's continuations, so
+ * {@link #withPageSize} bounds how much of a result set is held in memory.
+ * Instances are immutable; every {@code with*} method returns a copy.</p>
+ */
+public final class RiakIndexQuery<K> {
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final String index;
+    private final K from;
+    private final K to;
+    private final boolean match;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private boolean returnTerms;
+    private String continuation;
+
+    private RiakIndexQuery(String index, K from, K to, boolean match) {
+        this.index = index;
+        this.from = from;
+        this.to = to;
+        this.match = match;
+    }
+
+    private RiakIndexQuery(RiakIndexQuery<K> other) {
+        this(other.index, other.from, other.to, other.match);
+        this.pageSize = other.pageSize;
+        this.returnTerms = other.returnTerms;
+        this.continuation = other.continuation;
+    }
+
+    public static RiakIndexQuery<Long> match(String index, long value) {
+        return new RiakIndexQuery<>(index, value, value, true);
+    }
+
+    public static RiakIndexQuery<String> match(String index, String value) {
+        return new RiakIndexQuery<>(index, value, value, true);
+    }
+
+    public static RiakIndexQuery<Long> range(String index, long from, long to) {
+        return new RiakIndexQuery<>(index, from, to, false);
+    }
+
+    public static RiakIndexQuery<String> range(String index, String from, String to) {
+        return new RiakIndexQuery<>(index, from, to, false);
+    }
+
+    public RiakIndexQuery<K> withPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        RiakIndexQuery<K> q = new RiakIndexQuery<>(this);
+        q.pageSize = pageSize;
+        return q;
+    }
+
+    /**
+     * Whether entries should carry the matching index term. Riak only
+     * returns terms for range queries.
+     */
+    public RiakIndexQuery<K> withReturnTerms(boolean returnTerms) {
+        RiakIndexQuery<K> q = new RiakIndexQuery<>(this);
+        q.returnTerms = returnTerms;
+        return q;
+    }
+
+    /**
+     * Resumes the query after the page that returned {@code continuation}
+     * (see {@link RiakIndexPage#getContinuation}).
+     */
+    public RiakIndexQuery<K> withContinuation(String continuation) {
+        RiakIndexQuery<K> q = new RiakIndexQuery<>(this);
+        q.continuation = continuation;
+        return q;
+    }
+
+    public String getIndex() { return index; }
+    public K getFrom() { return from; }
+    public K getTo() { return to; }
+    public int getPageSize() { return pageSize; }
+    public boolean isReturnTerms() { return returnTerms; }
+    public String getContinuation() { return continuation; }
+
+    @SuppressWarnings("unchecked")
+    RiakCommand<? extends SecondaryIndexQuery.Response<K>, ?> command(Namespace ns, String continuation) {
+        BinaryValue cont = continuation == null ? null : BinaryValue.unsafeCreate(Base64.getUrlDecoder().decode(continuation));
+        if (from instanceof Long) {
+            IntIndexQuery.Builder builder = match
+                    ? new IntIndexQuery.Builder(ns, index, (Long) from)
+                    : new IntIndexQuery.Builder(ns, index, (Long) from, (Long) to);
+            builder.withMaxResults(pageSize).withPaginationSort(true).withKeyAndIndex(returnTerms && !match);
+            if (cont != null) {
+                builder.withContinuation(cont);
+            }
+            return (RiakCommand<? extends SecondaryIndexQuery.Response<K>, ?>) (RiakCommand<?, ?>) builder.build();
+        }
+
+        BinIndexQuery.Builder builder = match
+                ? new BinIndexQuery.Builder(ns, index, (String) from)
+                : new BinIndexQuery.Builder(ns, index, (String) from, (String) to);
+        builder.withMaxResults(pageSize).withPaginationSort(true).withKeyAndIndex(returnTerms && !match);
+        if (cont != null) {
+            builder.withContinuation(cont);
+        }
+        return (RiakCommand<? extends SecondaryIndexQuery.Response<K>, ?>) (RiakCommand<?, ?>) builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    RiakIndexPage<K> toPage(SecondaryIndexQuery.Response<K> response) {
+        List<? extends SecondaryIndexQuery.Response.Entry<K>> entries = from instanceof Long
+                ? (List<? extends SecondaryIndexQuery.Response.Entry<K>>) (List<?>) ((IntIndexQuery.Response) response).getEntries()
+                : (List<? extends SecondaryIndexQuery.Response.Entry<K>>) (List<?>) ((BinIndexQuery.Response) response).getEntries();
+
+        List<RiakIndexEntry<K>> page = new ArrayList<>(entries.size());
+        for (SecondaryIndexQuery.Response.Entry<K> entry : entries) {
+            page.add(new RiakIndexEntry<>(entry.getRiakObjectLocation(), returnTerms ? entry.getIndexKey() : null));
+        }
+        String next = response.hasContinuation()
+                ? Base64.getUrlEncoder().withoutPadding().encodeToString(response.getContinuation().unsafeGetValue())
+                : null;
+        return new RiakIndexPage<>(page, next);
+    }
+}
@@ -0,0 +1,91 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.core.query.Namespace;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Timers, error counters and result counters for {@link RiakDAO}
+ * operations. Metric names are {@code <owner>.<name>[.<bucketType>.<bucket>].<op>},
+ * with bucket tagging turned on by {@link #withBucketTags}.
+ */
+public class RiakMetrics {
+    private final MetricRegistry registry;
+    private final String prefix;
+    private boolean bucketTags;
+
+    public RiakMetrics(MetricRegistry registry, Class<?> owner, String name) {
+        this.registry = registry;
+        this.prefix = MetricRegistry.name(owner, name);
+    }
+
+    public RiakMetrics withBucketTags(boolean bucketTags) {
+        this.bucketTags = bucketTags;
+        return this;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Times the asynchronous operation from the moment it is started until
+     * its future completes, counting it as an error if it completes
+     * exceptionally. A missing object, which {@link #notFound} counts, or a
+     * failed precondition is not an error.
+     */
+    <R> CompletableFuture<R> time(String op, Namespace ns, Supplier<CompletableFuture<R>> call) {
+        Timer.Context context = registry.timer(name(ns, op)).time();
+        CompletableFuture<R> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            context.stop();
+            error(op, ns);
+            throw e;
+        }
+
+        return future.whenComplete((r, e) -> {
+            context.stop();
+            if (e != null && RiakDAO.isFailure(e)) {
+                error(op, ns);
+            }
+        });
+    }
+
+    void error(String op, Namespace ns) {
+        registry.counter(name(ns, op, "errors")).inc();
+    }
+
+    void notFound(Namespace ns) {
+        registry.counter(name(ns, "not-found")).inc();
+    }
+
+    void storeConflict(Namespace ns) {
+        registry.counter(name(ns, "store-conflicts")).inc();
+    }
+
+    void siblings(Namespace ns, int count) {
+        registry.histogram(name(ns, "siblings")).update(count);
+        if (count > 1) {
+            registry.counter(name(ns, "sibling-conflicts")).inc();
+        }
+    }
+
+    Timer.Context resolving(Namespace ns) {
+        return registry.timer(name(ns, "sibling-resolution")).time();
+    }
+
+    String name(Namespace ns, String... names) {
+        if (bucketTags && ns != null) {
+            String tagged = MetricRegistry.name(prefix,
+                    ns.getBucketTypeAsString(),
+                    ns.getBucketNameAsString());
+            return MetricRegistry.name(tagged, names);
+        }
+        return MetricRegistry.name(prefix, names);
+    }
+}
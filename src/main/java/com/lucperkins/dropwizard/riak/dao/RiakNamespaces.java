@@ -0,0 +1,57 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.core.query.Namespace;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interned {@link Namespace} instances. Applications talk to a handful of
+ * buckets, so there's no need to allocate (and UTF-8 encode) a fresh
+ * namespace for every location built on the request path.
+ *
+ * <p>Bucket names can come from request paths, so only the first
+ * {@value #MAX_INTERNED} namespaces seen are kept; later ones are built
+ * fresh each time.</p>
+ */
+public final class RiakNamespaces {
+    private static final int MAX_INTERNED = 1024;
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, Namespace>> NAMESPACES =
+            new ConcurrentHashMap<>();
+    private static final AtomicInteger INTERNED = new AtomicInteger();
+
+    private RiakNamespaces() {}
+
+    public static Namespace of(String bucket) {
+        return of(Namespace.DEFAULT_BUCKET_TYPE, bucket);
+    }
+
+    public static Namespace of(String bucketType, String bucket) {
+        if (bucketType == null || bucket == null) {
+            return new Namespace(bucketType, bucket);
+        }
+
+        ConcurrentMap<String, Namespace> buckets = NAMESPACES.get(bucketType);
+        Namespace ns = buckets == null ? null : buckets.get(bucket);
+        if (ns != null) {
+            return ns;
+        }
+
+        ns = new Namespace(bucketType, bucket);
+        if (INTERNED.incrementAndGet() > MAX_INTERNED) {
+            INTERNED.decrementAndGet();
+            return ns;
+        }
+        if (buckets == null) {
+            buckets = NAMESPACES.computeIfAbsent(bucketType, type -> new ConcurrentHashMap<>());
+        }
+        Namespace existing = buckets.putIfAbsent(bucket, ns);
+        if (existing != null) {
+            INTERNED.decrementAndGet();
+            return existing;
+        }
+        return ns;
+    }
+}
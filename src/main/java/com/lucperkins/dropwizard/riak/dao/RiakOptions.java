@@ -0,0 +1,164 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.cap.Quorum;
+import com.basho.riak.client.api.commands.datatypes.FetchDatatype;
+import com.basho.riak.client.api.commands.datatypes.UpdateDatatype;
+import com.basho.riak.client.api.commands.kv.DeleteValue;
+import com.basho.riak.client.api.commands.kv.FetchValue;
+import com.basho.riak.client.api.commands.kv.StoreValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quorum and timeout settings for {@link RiakDAO} operations. Options that
+ * are left unset fall back to the bucket's properties in Riak. An instance
+ * can be set as a DAO-wide default with {@link RiakDAO#withOptions} or passed
+ * to an individual call, in which case the values set on it take
+ * precedence over the DAO's.
+ *
+ * <p>Instances are immutable; every {@code with*} method returns a copy.</p>
+ */
+public final class RiakOptions {
+    public static final RiakOptions DEFAULT = new RiakOptions();
+
+    private Quorum r;
+    private Quorum pr;
+    private Quorum w;
+    private Quorum dw;
+    private Quorum pw;
+    private Boolean basicQuorum;
+    private Boolean notFoundOk;
+    private Boolean sloppyQuorum;
+    private Integer timeout;
+
+    public RiakOptions() {}
+
+    private RiakOptions(RiakOptions other) {
+        this.r = other.r;
+        this.pr = other.pr;
+        this.w = other.w;
+        this.dw = other.dw;
+        this.pw = other.pw;
+        this.basicQuorum = other.basicQuorum;
+        this.notFoundOk = other.notFoundOk;
+        this.sloppyQuorum = other.sloppyQuorum;
+        this.timeout = other.timeout;
+    }
+
+    public RiakOptions withR(Quorum r) { RiakOptions o = new RiakOptions(this); o.r = r; return o; }
+    public RiakOptions withPr(Quorum pr) { RiakOptions o = new RiakOptions(this); o.pr = pr; return o; }
+    public RiakOptions withW(Quorum w) { RiakOptions o = new RiakOptions(this); o.w = w; return o; }
+    public RiakOptions withDw(Quorum dw) { RiakOptions o = new RiakOptions(this); o.dw = dw; return o; }
+    public RiakOptions withPw(Quorum pw) { RiakOptions o = new RiakOptions(this); o.pw = pw; return o; }
+
+    public RiakOptions withR(int r) { return withR(new Quorum(r)); }
+    public RiakOptions withPr(int pr) { return withPr(new Quorum(pr)); }
+    public RiakOptions withW(int w) { return withW(new Quorum(w)); }
+    public RiakOptions withDw(int dw) { return withDw(new Quorum(dw)); }
+    public RiakOptions withPw(int pw) { return withPw(new Quorum(pw)); }
+
+    public RiakOptions withBasicQuorum(boolean basicQuorum) {
+        RiakOptions o = new RiakOptions(this);
+        o.basicQuorum = basicQuorum;
+        return o;
+    }
+
+    public RiakOptions withNotFoundOk(boolean notFoundOk) {
+        RiakOptions o = new RiakOptions(this);
+        o.notFoundOk = notFoundOk;
+        return o;
+    }
+
+    public RiakOptions withSloppyQuorum(boolean sloppyQuorum) {
+        RiakOptions o = new RiakOptions(this);
+        o.sloppyQuorum = sloppyQuorum;
+        return o;
+    }
+
+    public RiakOptions withTimeout(long timeout, TimeUnit unit) {
+        RiakOptions o = new RiakOptions(this);
+        o.timeout = (int) unit.toMillis(timeout);
+        return o;
+    }
+
+    public Quorum getR() { return r; }
+    public Quorum getPr() { return pr; }
+    public Quorum getW() { return w; }
+    public Quorum getDw() { return dw; }
+    public Quorum getPw() { return pw; }
+    public Boolean getBasicQuorum() { return basicQuorum; }
+    public Boolean getNotFoundOk() { return notFoundOk; }
+    public Boolean getSloppyQuorum() { return sloppyQuorum; }
+    public Integer getTimeout() { return timeout; }
+
+    /**
+     * Returns a copy of these options with every value set on
+     * {@code overrides} replacing the corresponding value here.
+     */
+    public RiakOptions merge(RiakOptions overrides) {
+        if (overrides == null || overrides == DEFAULT) {
+            return this;
+        }
+        RiakOptions o = new RiakOptions(this);
+        if (overrides.r != null) o.r = overrides.r;
+        if (overrides.pr != null) o.pr = overrides.pr;
+        if (overrides.w != null) o.w = overrides.w;
+        if (overrides.dw != null) o.dw = overrides.dw;
+        if (overrides.pw != null) o.pw = overrides.pw;
+        if (overrides.basicQuorum != null) o.basicQuorum = overrides.basicQuorum;
+        if (overrides.notFoundOk != null) o.notFoundOk = overrides.notFoundOk;
+        if (overrides.sloppyQuorum != null) o.sloppyQuorum = overrides.sloppyQuorum;
+        if (overrides.timeout != null) o.timeout = overrides.timeout;
+        return o;
+    }
+
+    FetchValue.Builder applyTo(FetchValue.Builder fetchOp) {
+        if (r != null) fetchOp.withOption(FetchValue.Option.R, r);
+        if (pr != null) fetchOp.withOption(FetchValue.Option.PR, pr);
+        if (basicQuorum != null) fetchOp.withOption(FetchValue.Option.BASIC_QUORUM, basicQuorum);
+        if (notFoundOk != null) fetchOp.withOption(FetchValue.Option.NOTFOUND_OK, notFoundOk);
+        if (sloppyQuorum != null) fetchOp.withOption(FetchValue.Option.SLOPPY_QUORUM, sloppyQuorum);
+        if (timeout != null) fetchOp.withTimeout(timeout);
+        return fetchOp;
+    }
+
+    StoreValue.Builder applyTo(StoreValue.Builder storeOp) {
+        if (w != null) storeOp.withOption(StoreValue.Option.W, w);
+        if (dw != null) storeOp.withOption(StoreValue.Option.DW, dw);
+        if (pw != null) storeOp.withOption(StoreValue.Option.PW, pw);
+        if (sloppyQuorum != null) storeOp.withOption(StoreValue.Option.SLOPPY_QUORUM, sloppyQuorum);
+        if (timeout != null) storeOp.withTimeout(timeout);
+        return storeOp;
+    }
+
+    DeleteValue.Builder applyTo(DeleteValue.Builder deleteOp) {
+        if (r != null) deleteOp.withOption(DeleteValue.Option.R, r);
+        if (pr != null) deleteOp.withOption(DeleteValue.Option.PR, pr);
+        if (w != null) deleteOp.withOption(DeleteValue.Option.W, w);
+        if (dw != null) deleteOp.withOption(DeleteValue.Option.DW, dw);
+        if (pw != null) deleteOp.withOption(DeleteValue.Option.PW, pw);
+        if (sloppyQuorum != null) deleteOp.withOption(DeleteValue.Option.SLOPPY_QUORUM, sloppyQuorum);
+        if (timeout != null) deleteOp.withTimeout(timeout);
+        return deleteOp;
+    }
+
+    // FetchDatatype's builder isn't public, so options go on the built command
+    <C extends FetchDatatype<?, ?, ?>> C applyTo(C fetchOp) {
+        if (r != null) fetchOp.withOption(FetchDatatype.Option.R, r);
+        if (pr != null) fetchOp.withOption(FetchDatatype.Option.PR, pr);
+        if (basicQuorum != null) fetchOp.withOption(FetchDatatype.Option.BASIC_QUORUM, basicQuorum);
+        if (notFoundOk != null) fetchOp.withOption(FetchDatatype.Option.NOTFOUND_OK, notFoundOk);
+        if (sloppyQuorum != null) fetchOp.withOption(FetchDatatype.Option.SLOPPY_QUORUM, sloppyQuorum);
+        if (timeout != null) fetchOp.withOption(FetchDatatype.Option.TIMEOUT, timeout);
+        return fetchOp;
+    }
+
+    <B extends UpdateDatatype.Builder<B>> B applyTo(B updateOp) {
+        if (w != null) updateOp.withOption(UpdateDatatype.Option.W, w);
+        if (dw != null) updateOp.withOption(UpdateDatatype.Option.DW, dw);
+        if (pw != null) updateOp.withOption(UpdateDatatype.Option.PW, pw);
+        if (sloppyQuorum != null) updateOp.withOption(UpdateDatatype.Option.SLOPPY_QUORUM, sloppyQuorum);
+        if (timeout != null) updateOp.withTimeout(timeout);
+        return updateOp;
+    }
+}
@@ -2,25 +2,102 @@ package com.lucperkins.dropwizard.riak.dao;
 
 import com.basho.riak.client.api.RiakClient;
 import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.api.cap.BasicVClock;
+import com.basho.riak.client.api.cap.ConflictResolver;
 import com.basho.riak.client.api.commands.kv.UpdateValue;
+import com.basho.riak.client.api.convert.Converter;
 import com.basho.riak.client.core.query.Location;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class RiakResourceDriver<T> {
     private final RiakDAO<T> riak;
+    private final String name;
+    private MetricRegistry metrics;
+    private ObjectMapper mapper = new ObjectMapper();
 
     public RiakResourceDriver(RiakClient client, Class<T> clazz) {
         this.riak = new RiakDAO<>(client, clazz);
+        this.name = clazz.getSimpleName();
+    }
+
+    public RiakResourceDriver(RiakDAO<T> riak) {
+        this.riak = riak;
+        this.name = riak.clazz.getSimpleName();
+    }
+
+    public RiakResourceDriver<T> withConverter(Converter<T> converter) {
+        riak.withConverter(converter);
+        return this;
+    }
+
+    public RiakResourceDriver<T> withResolver(ConflictResolver<T> resolver) {
+        riak.withResolver(resolver);
+        return this;
+    }
+
+    /**
+     * Guards the underlying DAO with {@code circuitBreakers}. Calls they
+     * reject get a 503 with a {@code Retry-After} header when the breaker
+     * knows when it will let calls through again.
+     */
+    public RiakResourceDriver<T> withCircuitBreakers(CircuitBreakers circuitBreakers) {
+        riak.withCircuitBreakers(circuitBreakers);
+        return this;
+    }
+
+    public RiakResourceDriver<T> withRetryPolicy(RetryPolicy retryPolicy) {
+        riak.withRetryPolicy(retryPolicy);
+        return this;
+    }
+
+    /**
+     * Instruments the underlying DAO (unless it already has metrics) and
+     * meters the error responses this driver produces, by status code.
+     */
+    public RiakResourceDriver<T> withMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+        if (riak.getMetrics() == null) {
+            riak.withMetrics(metrics);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the mapper used to write the bodies of {@link #list} responses.
+     * Pass the environment's mapper to get the same output as regular
+     * resources; by default a plain {@link ObjectMapper} is used.
+     */
+    public RiakResourceDriver<T> withObjectMapper(ObjectMapper mapper) {
+        this.mapper = mapper;
+        return this;
     }
 
     public T get(Location loc) {
         try {
             return riak.fetch(loc);
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+            throw failure(e, Response.Status.NOT_FOUND);
         }
     }
 
@@ -28,7 +105,7 @@ public class RiakResourceDriver<T> {
         try {
             return riak.fetch(bucket, key);
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+            throw failure(e, Response.Status.NOT_FOUND);
         }
     }
 
@@ -36,39 +113,209 @@ public class RiakResourceDriver<T> {
         try {
             return riak.fetch(bucket, key, bucketType);
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+            throw failure(e, Response.Status.NOT_FOUND);
         }
     }
 
-    public Response post(RiakableObject obj, String uriString) {
-        URI uri = URI.create(uriString);
+    public Map<String, T> getAll(String bucket, Collection<String> keys) {
+        List<Location> locs = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            locs.add(RiakDAO.makeLocation(bucket, key));
+        }
+        return getAll(locs);
+    }
+
+    public Map<String, T> getAll(String bucket, Collection<String> keys, String bucketType) {
+        List<Location> locs = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            locs.add(RiakDAO.makeLocation(bucket, key, bucketType));
+        }
+        return getAll(locs);
+    }
+
+    private Map<String, T> getAll(List<Location> locs) {
         try {
-            if (riak.found(obj.getLocation())) {
-                return Response
-                        .status(409)
-                        .entity("Object already exists")
-                        .build();
+            MultiFetchResult<T> result = riak.fetchAll(locs);
+            Map<String, T> found = new LinkedHashMap<>();
+            for (Location loc : locs) {
+                T t = result.getValues().get(loc);
+                if (t != null) {
+                    found.put(loc.getKeyAsString(), t);
+                }
             }
+            return found;
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
 
-            if (riak.store(obj)) {
-                return Response.created(uri).build();
-            } else {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    /**
+     * Streams one page of the objects matching a secondary index query as
+     * {@code {"items": [...], "continuation": "..."}}. The page size and
+     * starting cursor come from the query; the continuation field is left out
+     * on the last page. The index page is fetched before this returns, so a
+     * bad cursor or an unreachable cluster still produces an error status.
+     * Objects are then fetched {@link RiakDAO#getMaxInFlight} at a time and
+     * written as each batch arrives, so memory stays bounded by the page
+     * size rather than the size of the result set.
+     */
+    public <K> StreamingOutput list(RiakIndexQuery<K> query, String bucket) {
+        try {
+            return list(riak.queryIndexPage(query, bucket));
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public <K> StreamingOutput list(RiakIndexQuery<K> query, String bucket, String bucketType) {
+        try {
+            return list(riak.queryIndexPage(query, bucket, bucketType));
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Streams the objects stored under {@code keys} as {@code {"items": [...]}},
+     * in key order, skipping keys that are not found. Unlike
+     * {@link #getAll}, nothing beyond the batch in flight is held in memory.
+     */
+    public StreamingOutput list(String bucket, Iterable<String> keys) {
+        return output -> write(output, locations(keys, key -> RiakDAO.makeLocation(bucket, key)), null);
+    }
+
+    public StreamingOutput list(String bucket, Iterable<String> keys, String bucketType) {
+        return output -> write(output, locations(keys, key -> RiakDAO.makeLocation(bucket, key, bucketType)), null);
+    }
+
+    private <K> StreamingOutput list(RiakIndexPage<K> page) {
+        return output -> write(output, locations(page.getEntries(), RiakIndexEntry::getLocation), page.getContinuation());
+    }
+
+    private static <S> Iterator<Location> locations(Iterable<S> sources, Function<S, Location> toLocation) {
+        Iterator<S> it = sources.iterator();
+        return new Iterator<Location>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Location next() {
+                return toLocation.apply(it.next());
+            }
+        };
+    }
+
+    /**
+     * Writes the objects at {@code locs} while the next batch is already
+     * being fetched. Once the response has started the status can no longer
+     * change, so a failed fetch throws an {@link IOException}, which makes
+     * the container abort the connection. The generator doesn't close open
+     * arrays and objects, so the body a client did receive is truncated
+     * JSON rather than a complete-looking last page.
+     */
+    private void write(OutputStream output, Iterator<Location> locs, String continuation) throws IOException {
+        try (JsonGenerator json = mapper.getFactory().createGenerator(output)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("items");
+            List<Location> batch = nextBatch(locs);
+            CompletableFuture<MultiFetchResult<T>> fetched = riak.fetchAllAsync(batch);
+            while (!batch.isEmpty()) {
+                List<Location> following = nextBatch(locs);
+                CompletableFuture<MultiFetchResult<T>> prefetched = riak.fetchAllAsync(following);
+                MultiFetchResult<T> result = fetched.join();
+                if (result.hasFailures()) {
+                    prefetched.cancel(false);
+                    throw new IOException("Failed to fetch " + result.getFailures().size()
+                            + " objects after the response started");
+                }
+                for (Location loc : batch) {
+                    T t = result.getValues().get(loc);
+                    if (t != null) {
+                        json.writeObject(t);
+                    }
+                }
+                json.flush();
+                batch = following;
+                fetched = prefetched;
+            }
+            json.writeEndArray();
+            if (continuation != null) {
+                json.writeStringField("continuation", continuation);
             }
+            json.writeEndObject();
+        }
+    }
+
+    private List<Location> nextBatch(Iterator<Location> locs) {
+        int size = riak.getMaxInFlight();
+        List<Location> batch = new ArrayList<>(size);
+        while (batch.size() < size && locs.hasNext()) {
+            batch.add(locs.next());
+        }
+        return batch;
+    }
+
+    /**
+     * Creates {@code obj}, responding 409 Conflict if it already exists. The
+     * existence check and the write are a single atomic request.
+     */
+    public Response post(RiakableObject obj, String uriString) {
+        URI uri = URI.create(uriString);
+        try {
+            return created(riak.storeIfAbsent(obj), uri);
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            throw failure(e, Response.Status.BAD_REQUEST);
         }
     }
 
-    public Response put(Location loc, UpdateValue.Update update) {
+    public Response put(Location loc, UpdateValue.Update<T> update) {
         try {
             if (riak.update(loc, update)) {
                 return Response.status(204).build();
             } else {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+                throw failure(Response.Status.BAD_REQUEST);
             }
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * The vector clock {@code obj} was fetched with, as an entity tag, or
+     * null if it wasn't fetched. Request bodies don't carry the vector
+     * clock, so send this as the {@code ETag} of a GET and take it back from
+     * {@code If-Match} in {@link #put(RiakableObject, String)}.
+     */
+    public EntityTag entityTag(RiakableObject obj) {
+        if (obj.vClock == null) {
+            return null;
+        }
+        return new EntityTag(Base64.getUrlEncoder().encodeToString(obj.vClock.getBytes()));
+    }
+
+    /**
+     * Stores a previously fetched object unless someone else has modified it
+     * since, responding 412 Precondition Failed if they have. See
+     * {@link RiakDAO#storeIfNotModified}. An object without a vector clock
+     * gets 428 Precondition Required.
+     */
+    public Response put(RiakableObject obj) {
+        return put(obj, null);
+    }
+
+    /**
+     * Like {@link #put(RiakableObject)}, but takes the vector clock from an
+     * {@code If-Match} header holding an {@link #entityTag}, if there is one.
+     */
+    public Response put(RiakableObject obj, String ifMatch) {
+        withVClock(obj, ifMatch);
+        try {
+            return stored(riak.storeIfNotModified(obj));
+        } catch (RiakException e) {
+            throw failure(e, Response.Status.BAD_REQUEST);
         }
     }
 
@@ -81,10 +328,10 @@ public class RiakResourceDriver<T> {
                         .entity("Object has been successfully deleted")
                         .build();
             } else {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+                throw failure(Response.Status.BAD_REQUEST);
             }
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            throw failure(e, Response.Status.BAD_REQUEST);
         }
     }
 
@@ -97,10 +344,10 @@ public class RiakResourceDriver<T> {
                         .entity("Object has been successfully deleted")
                         .build();
             } else {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+                throw failure(Response.Status.BAD_REQUEST);
             }
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            throw failure(e, Response.Status.BAD_REQUEST);
         }
     }
 
@@ -110,10 +357,10 @@ public class RiakResourceDriver<T> {
             if (riak.delete(loc)) {
                 return Response.status(202).build();
             } else {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+                throw failure(Response.Status.BAD_REQUEST);
             }
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            throw failure(e, Response.Status.BAD_REQUEST);
         }
     }
 
@@ -123,10 +370,198 @@ public class RiakResourceDriver<T> {
             if (riak.delete(loc)) {
                 return Response.status(202).build();
             } else {
-                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+                throw failure(Response.Status.BAD_REQUEST);
             }
         } catch (RiakException e) {
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            throw failure(e, Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public CompletableFuture<T> getAsync(Location loc) {
+        return riak.fetchAsync(loc)
+                .exceptionally(failWith(Response.Status.NOT_FOUND));
+    }
+
+    public CompletableFuture<T> getAsync(String bucket, String key) {
+        return riak.fetchAsync(bucket, key)
+                .exceptionally(failWith(Response.Status.NOT_FOUND));
+    }
+
+    public CompletableFuture<T> getAsync(String bucket, String key, String bucketType) {
+        return riak.fetchAsync(bucket, key, bucketType)
+                .exceptionally(failWith(Response.Status.NOT_FOUND));
+    }
+
+    public CompletableFuture<Response> postAsync(RiakableObject obj, String uriString) {
+        URI uri = URI.create(uriString);
+        return riak.storeIfAbsentAsync(obj)
+                .thenApply(result -> created(result, uri))
+                .exceptionally(failWith(Response.Status.BAD_REQUEST));
+    }
+
+    public CompletableFuture<Response> putAsync(Location loc, UpdateValue.Update<T> update) {
+        return riak.updateAsync(loc, update)
+                .thenApply(updated -> statusIf(updated, 204))
+                .exceptionally(failWith(Response.Status.BAD_REQUEST));
+    }
+
+    public CompletableFuture<Response> putAsync(RiakableObject obj) {
+        return putAsync(obj, null);
+    }
+
+    public CompletableFuture<Response> putAsync(RiakableObject obj, String ifMatch) {
+        try {
+            withVClock(obj, ifMatch);
+        } catch (WebApplicationException e) {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        return riak.storeIfNotModifiedAsync(obj)
+                .thenApply(this::stored)
+                .exceptionally(failWith(Response.Status.BAD_REQUEST));
+    }
+
+    public CompletableFuture<Response> deleteAsync(String bucket, String key) {
+        return deleteAsync(RiakDAO.makeLocation(bucket, key));
+    }
+
+    public CompletableFuture<Response> deleteAsync(String bucket, String key, String bucketType) {
+        return deleteAsync(RiakDAO.makeLocation(bucket, key, bucketType));
+    }
+
+    private CompletableFuture<Response> deleteAsync(Location loc) {
+        return riak.deleteAsync(loc)
+                .thenApply(deleted -> {
+                    if (deleted) {
+                        return Response
+                                .status(200)
+                                .entity("Object has been successfully deleted")
+                                .build();
+                    }
+                    throw failure(Response.Status.BAD_REQUEST);
+                })
+                .exceptionally(failWith(Response.Status.BAD_REQUEST));
+    }
+
+    /**
+     * Gives {@code obj} the vector clock in {@code ifMatch}, if any, and
+     * makes sure it has one before a conditional store.
+     */
+    private void withVClock(RiakableObject obj, String ifMatch) {
+        if (ifMatch != null) {
+            String tag = ifMatch.trim();
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+            try {
+                obj.vClock = new BasicVClock(Base64.getUrlDecoder().decode(tag));
+            } catch (IllegalArgumentException e) {
+                throw failure(Response.Status.BAD_REQUEST);
+            }
+        }
+        if (obj.vClock == null) {
+            mark(428);
+            throw new WebApplicationException(Response
+                    .status(428)
+                    .entity("Object has no vclock; send the ETag it was fetched with in If-Match")
+                    .build());
+        }
+    }
+
+    private Response created(StoreResult result, URI uri) {
+        if (result == StoreResult.STORED) {
+            return Response.created(uri).build();
+        }
+        return conflict();
+    }
+
+    private Response statusIf(boolean succeeded, int status) {
+        if (succeeded) {
+            return Response.status(status).build();
+        }
+        throw failure(Response.Status.BAD_REQUEST);
+    }
+
+    /**
+     * Async counterpart of the catch blocks above: any Riak failure becomes a
+     * {@link WebApplicationException} with the given status, while
+     * {@link WebApplicationException}s raised along the way pass through.
+     */
+    private <R> Function<Throwable, R> failWith(Response.Status status) {
+        return t -> {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (cause instanceof WebApplicationException) {
+                throw (WebApplicationException) cause;
+            }
+            CallRejectedException rejected = rejection(cause);
+            if (rejected != null) {
+                throw unavailable(rejected);
+            }
+            mark(status.getStatusCode());
+            throw new WebApplicationException(cause, status);
+        };
+    }
+
+    private WebApplicationException failure(Response.Status status) {
+        mark(status.getStatusCode());
+        return new WebApplicationException(status);
+    }
+
+    private WebApplicationException failure(RiakException e, Response.Status status) {
+        CallRejectedException rejected = rejection(e);
+        return rejected != null ? unavailable(rejected) : failure(status);
+    }
+
+    private WebApplicationException unavailable(CallRejectedException e) {
+        mark(503);
+        return new WebApplicationException(e, unavailableResponse(e));
+    }
+
+    /**
+     * 503 Service Unavailable for a rejected call, with a
+     * {@code Retry-After} header if the breaker knows when it will let calls
+     * through again. Shared with {@link RiakDataTypeResourceDriver}.
+     */
+    static Response unavailableResponse(CallRejectedException e) {
+        Response.ResponseBuilder response = Response.status(Response.Status.SERVICE_UNAVAILABLE);
+        if (e.getRetryAfterMillis() > 0) {
+            response.header("Retry-After", TimeUnit.MILLISECONDS.toSeconds(e.getRetryAfterMillis() + 999));
+        }
+        return response.build();
+    }
+
+    static CallRejectedException rejection(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CallRejectedException) {
+                return (CallRejectedException) cause;
+            }
+        }
+        return null;
+    }
+
+    private Response conflict() {
+        mark(409);
+        return Response
+                .status(409)
+                .entity("Object already exists")
+                .build();
+    }
+
+    private Response stored(StoreResult result) {
+        if (result == StoreResult.STORED) {
+            return Response.status(204).build();
+        }
+        mark(412);
+        return Response
+                .status(412)
+                .entity("Object has been modified")
+                .build();
+    }
+
+    private void mark(int status) {
+        if (metrics != null) {
+            metrics.meter(MetricRegistry.name(RiakResourceDriver.class, name, "responses", String.valueOf(status))).mark();
         }
     }
 }
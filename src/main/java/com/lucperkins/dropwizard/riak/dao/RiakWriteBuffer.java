@@ -0,0 +1,196 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.commands.datatypes.SetUpdate;
+import com.basho.riak.client.core.query.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces counter increments and set adds/removes per {@link Location}
+ * and writes each key's merged changes as a single data type update, so a
+ * hot counter that's bumped thousands of times a second costs one round
+ * trip per flush instead of one per increment.
+ *
+ * <p>Pending changes are flushed every {@code flushInterval}, as soon as
+ * {@code maxPending} operations are buffered, on {@link #flush()}, and on
+ * {@link #close()}. Register the buffer with
+ * {@link com.lucperkins.dropwizard.riak.operations.RiakClusterManager#registerWriteBuffer}
+ * to have it closed before the cluster shuts down. Each key has at most one
+ * update in flight; changes made meanwhile wait for the next flush. A
+ * failed update is logged and fails the futures of the operations it
+ * carried, but it is not retried, since a timed-out increment may still
+ * have been applied.</p>
+ */
+public class RiakWriteBuffer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RiakWriteBuffer.class);
+    private final RiakDataTypeDAO riak;
+    private final int maxPending;
+    private final ConcurrentMap<Location, Pending> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Location, CompletableFuture<Void>> writing = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingOps = new AtomicInteger();
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+
+    public RiakWriteBuffer(RiakDataTypeDAO riak, long flushInterval, TimeUnit unit, int maxPending) {
+        if (flushInterval < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("flushInterval and maxPending must be at least 1");
+        }
+        this.riak = riak;
+        this.maxPending = maxPending;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "riak-write-buffer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Buffers an increment of {@code delta}. The returned future completes
+     * once the flush carrying it has been written.
+     */
+    public CompletableFuture<Void> increment(Location loc, long delta) {
+        return buffer(loc, Kind.COUNTER, p -> p.delta += delta);
+    }
+
+    public CompletableFuture<Void> addToSet(Location loc, Collection<String> values) {
+        return buffer(loc, Kind.SET, p -> {
+            p.removes.removeAll(values);
+            p.adds.addAll(values);
+        });
+    }
+
+    public CompletableFuture<Void> removeFromSet(Location loc, Collection<String> values) {
+        return buffer(loc, Kind.SET, p -> {
+            p.adds.removeAll(values);
+            p.removes.addAll(values);
+        });
+    }
+
+    /**
+     * The number of operations buffered and not yet flushed.
+     */
+    public int getPendingCount() {
+        return pendingOps.get();
+    }
+
+    /**
+     * Writes everything buffered so far. The returned future completes when
+     * all of those writes have finished, and fails if any of them did.
+     */
+    public CompletableFuture<Void> flush() {
+        List<CompletableFuture<Void>> flushes = new ArrayList<>();
+        for (Location loc : pending.keySet()) {
+            Pending p = pending.remove(loc);
+            if (p != null) {
+                pendingOps.addAndGet(-p.ops);
+                flushes.add(write(loc, p));
+            }
+        }
+        return CompletableFuture.allOf(flushes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Stops accepting operations and blocks until everything buffered has
+     * been written (or has failed).
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdown();
+        flush().handle((r, e) -> null).join();
+    }
+
+    private CompletableFuture<Void> buffer(Location loc, Kind kind, Consumer<Pending> op) {
+        if (closed) {
+            throw new IllegalStateException("Write buffer is closed");
+        }
+        Pending p = pending.compute(loc, (k, current) -> {
+            Pending next = current == null ? new Pending(kind) : current;
+            if (next.kind != kind) {
+                throw new IllegalArgumentException(loc + " already has pending " + next.kind + " updates");
+            }
+            op.accept(next);
+            next.ops++;
+            return next;
+        });
+        // A write that raced with close() is flushed straight away
+        if (pendingOps.incrementAndGet() >= maxPending || closed) {
+            flush();
+        }
+        return p.done;
+    }
+
+    /**
+     * Queues {@code p} behind the key's previous write. Only the handoff
+     * happens atomically; the update is sent outside the map, so a write
+     * that completes inline can't re-enter it.
+     */
+    private CompletableFuture<Void> write(Location loc, Pending p) {
+        CompletableFuture<Void> previous = writing.put(loc, p.done);
+        CompletableFuture<Void> ready = previous == null
+                ? CompletableFuture.completedFuture(null)
+                : previous.handle((r, e) -> null);
+        ready.thenRun(() -> send(loc, p)).exceptionally(e -> {
+            finish(loc, p, e);
+            return null;
+        });
+        p.done.whenComplete((r, e) -> writing.remove(loc, p.done));
+        return p.done;
+    }
+
+    private void send(Location loc, Pending p) {
+        CompletableFuture<?> update;
+        if (p.kind == Kind.COUNTER) {
+            update = p.delta == 0 ? CompletableFuture.completedFuture(null) : riak.incrementAsync(loc, p.delta);
+        } else if (p.adds.isEmpty() && p.removes.isEmpty()) {
+            update = CompletableFuture.completedFuture(null);
+        } else {
+            SetUpdate setUpdate = new SetUpdate();
+            p.adds.forEach(setUpdate::add);
+            p.removes.forEach(setUpdate::remove);
+            update = riak.updateSetAsync(loc, setUpdate);
+        }
+        update.whenComplete((r, e) -> finish(loc, p, e));
+    }
+
+    private void finish(Location loc, Pending p, Throwable e) {
+        if (e != null) {
+            log.warn("Failed to flush {} buffered operations to {}", p.ops, loc, e);
+            p.done.completeExceptionally(RiakDAO.asRiakException(e));
+        } else {
+            p.done.complete(null);
+        }
+    }
+
+    private enum Kind { COUNTER, SET }
+
+    // Only mutated inside ConcurrentHashMap.compute, so access is serialized
+    private static final class Pending {
+        final Kind kind;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final Set<String> adds = new LinkedHashSet<>();
+        final Set<String> removes = new LinkedHashSet<>();
+        long delta;
+        int ops;
+
+        Pending(Kind kind) {
+            this.kind = kind;
+        }
+    }
+}
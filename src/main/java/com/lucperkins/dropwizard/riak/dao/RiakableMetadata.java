@@ -0,0 +1,63 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * What the Riak client's annotation processing would find on a class,
+ * computed once per class. A {@link RiakableObject} subclass that adds no
+ * Riak annotations of its own only needs the key, bucket, bucket type and
+ * vclock that live on the base class, which {@link JacksonConverter} can
+ * set directly instead of going through reflective field access.
+ */
+final class RiakableMetadata {
+    private static final String ANNOTATION_PACKAGE = "com.basho.riak.client.api.annotations";
+
+    private static final ClassValue<RiakableMetadata> CACHE = new ClassValue<RiakableMetadata>() {
+        @Override
+        protected RiakableMetadata computeValue(Class<?> type) {
+            return new RiakableMetadata(type);
+        }
+    };
+
+    private final boolean directAccess;
+
+    private RiakableMetadata(Class<?> type) {
+        this.directAccess = RiakableObject.class.isAssignableFrom(type) && !hasOwnRiakAnnotations(type);
+    }
+
+    static RiakableMetadata of(Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    boolean isDirectAccess() {
+        return directAccess;
+    }
+
+    private static boolean hasOwnRiakAnnotations(Class<?> type) {
+        for (Class<?> c = type; c != null && c != RiakableObject.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (isRiakAnnotated(field)) {
+                    return true;
+                }
+            }
+            for (Method method : c.getDeclaredMethods()) {
+                if (isRiakAnnotated(method)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRiakAnnotated(AccessibleObject member) {
+        for (Annotation annotation : member.getAnnotations()) {
+            if (annotation.annotationType().getName().startsWith(ANNOTATION_PACKAGE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
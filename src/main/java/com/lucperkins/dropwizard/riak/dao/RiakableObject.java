@@ -6,7 +6,6 @@ import com.basho.riak.client.api.annotations.RiakKey;
 import com.basho.riak.client.api.annotations.RiakVClock;
 import com.basho.riak.client.api.cap.VClock;
 import com.basho.riak.client.core.query.Location;
-import com.basho.riak.client.core.query.Namespace;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 public abstract class RiakableObject {
@@ -19,13 +18,20 @@ public abstract class RiakableObject {
     @RiakBucketType
     private String bucketType;
 
+    private Location location;
+
     public RiakableObject() {
         this.bucketType = bucketType == null ? "default" : bucketType;
     }
 
     @JsonIgnore
     public Location getLocation() {
-        return new Location(new Namespace(bucketType, bucket), key);
+        Location loc = location;
+        if (loc == null) {
+            loc = new Location(RiakNamespaces.of(bucketType, bucket), key);
+            location = loc;
+        }
+        return loc;
     }
 
     @JsonIgnore
@@ -40,7 +46,14 @@ public abstract class RiakableObject {
     @RiakVClock
     VClock vClock;
 
-    public void setKey(String key) { this.key = key; }
-    public void setBucket(String bucket) { this.bucket = bucket; }
-    public void setBucketType(String bucketType) { this.bucketType = bucketType; }
+    public void setKey(String key) { this.key = key; this.location = null; }
+    public void setBucket(String bucket) { this.bucket = bucket; this.location = null; }
+    public void setBucketType(String bucketType) { this.bucketType = bucketType; this.location = null; }
+
+    void setLocation(Location loc) {
+        this.key = loc.getKeyAsString();
+        this.bucket = loc.getNamespace().getBucketNameAsString();
+        this.bucketType = loc.getNamespace().getBucketTypeAsString();
+        this.location = loc;
+    }
 }
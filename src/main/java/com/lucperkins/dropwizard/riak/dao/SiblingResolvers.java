@@ -0,0 +1,67 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import com.basho.riak.client.api.cap.ConflictResolver;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Ready-made {@link ConflictResolver}s for {@link RiakDAO#withResolver}.
+ * They are only invoked when there are at least two siblings.
+ */
+public final class SiblingResolvers {
+    private SiblingResolvers() {
+    }
+
+    /**
+     * Keeps the sibling with the highest timestamp, e.g. an
+     * {@code updatedAt} field the application maintains. Ties go to the
+     * sibling Riak returned first. Concurrent writes other than the newest
+     * are lost, so only use this where that's acceptable.
+     */
+    public static <T> ConflictResolver<T> lastWriteWins(ToLongFunction<? super T> timestamp) {
+        return siblings -> {
+            T newest = siblings.get(0);
+            long newestTime = timestamp.applyAsLong(newest);
+            for (T sibling : siblings.subList(1, siblings.size())) {
+                long time = timestamp.applyAsLong(sibling);
+                if (time > newestTime) {
+                    newest = sibling;
+                    newestTime = time;
+                }
+            }
+            return newest;
+        };
+    }
+
+    /**
+     * Folds the siblings together pairwise with {@code merge}, which should
+     * be commutative and associative so that the result doesn't depend on
+     * the order Riak returns them in.
+     */
+    public static <T> ConflictResolver<T> merge(BinaryOperator<T> merge) {
+        return siblings -> siblings.stream().reduce(merge).get();
+    }
+
+    /**
+     * Treats a collection inside the value as a grow-only set: the result is
+     * the first sibling with {@code withElements} applied to the union of
+     * every sibling's elements. Removals made on one side of a conflict come
+     * back, so prefer a {@link RiakDataTypeDAO} set if they matter.
+     */
+    public static <T, E> ConflictResolver<T> union(Function<? super T, ? extends Collection<E>> elements,
+                                                   BiFunction<T, Set<E>, T> withElements) {
+        return siblings -> {
+            Set<E> union = new LinkedHashSet<>();
+            for (T sibling : siblings) {
+                union.addAll(elements.apply(sibling));
+            }
+            return withElements.apply(siblings.get(0), union);
+        };
+    }
+}
@@ -0,0 +1,16 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+/**
+ * Outcome of a conditional store. A failed precondition is reported as
+ * {@link #CONFLICT} rather than as an error, so callers can tell it apart
+ * from Riak being unavailable.
+ */
+public enum StoreResult {
+    STORED,
+
+    /**
+     * The stored object wasn't in the state the write was conditional on,
+     * e.g. it was modified or deleted after the caller fetched it.
+     */
+    CONFLICT
+}
@@ -0,0 +1,78 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+import net.jpountz.lz4.LZ4Factory;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Block compression applied by {@link JacksonConverter} after
+ * serialization. LZ4 and Snappy need {@code net.jpountz.lz4:lz4} and
+ * {@code org.xerial.snappy:snappy-java} respectively on the classpath.
+ */
+public enum ValueCompression {
+    NONE(null) {
+        @Override
+        byte[] compress(byte[] raw) { return raw; }
+
+        @Override
+        byte[] decompress(byte[] compressed) { return compressed; }
+    },
+
+    LZ4("lz4") {
+        @Override
+        byte[] compress(byte[] raw) {
+            byte[] compressed = LZ4Factory.fastestInstance().fastCompressor().compress(raw);
+            return ByteBuffer.allocate(4 + compressed.length)
+                    .putInt(raw.length)
+                    .put(compressed)
+                    .array();
+        }
+
+        @Override
+        byte[] decompress(byte[] compressed) {
+            int length = ByteBuffer.wrap(compressed).getInt();
+            return LZ4Factory.fastestInstance().fastDecompressor().decompress(compressed, 4, length);
+        }
+    },
+
+    SNAPPY("snappy") {
+        @Override
+        byte[] compress(byte[] raw) throws IOException {
+            return Snappy.compress(raw);
+        }
+
+        @Override
+        byte[] decompress(byte[] compressed) throws IOException {
+            return Snappy.uncompress(compressed);
+        }
+    };
+
+    private final String name;
+
+    ValueCompression(String name) {
+        this.name = name;
+    }
+
+    /**
+     * The value of the {@code compression} content-type parameter, or null
+     * for uncompressed values.
+     */
+    public String getName() {
+        return name;
+    }
+
+    abstract byte[] compress(byte[] raw) throws IOException;
+
+    abstract byte[] decompress(byte[] compressed) throws IOException;
+
+    static ValueCompression forName(String name) {
+        for (ValueCompression compression : values()) {
+            if (compression.name != null && compression.name.equalsIgnoreCase(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression: " + name);
+    }
+}
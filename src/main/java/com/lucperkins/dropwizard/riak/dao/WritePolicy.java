@@ -0,0 +1,19 @@
+package com.lucperkins.dropwizard.riak.dao;
+
+/**
+ * How {@link RiakDAO} decides whether a store or delete succeeded.
+ */
+public enum WritePolicy {
+    /**
+     * Trust Riak's own acknowledgement: stores ask for {@code RETURN_HEAD}
+     * and succeed if metadata comes back, deletes succeed on the ack. One
+     * round trip per write.
+     */
+    ACKNOWLEDGED,
+
+    /**
+     * Issue a follow-up fetch after every write and check that the object
+     * is (or, for deletes, is no longer) there. Two round trips per write.
+     */
+    VERIFY_BY_FETCH
+}
@@ -1,10 +1,14 @@
 package com.lucperkins.dropwizard.riak.operations;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public class HostAndPort {
     public String host;
     public int port;
 
-    public HostAndPort(String host, int port) {
+    @JsonCreator
+    public HostAndPort(@JsonProperty("host") String host, @JsonProperty("port") int port) {
         this.host = host;
         this.port = port;
     }
@@ -0,0 +1,375 @@
+package com.lucperkins.dropwizard.riak.operations;
+
+import com.basho.riak.client.core.DefaultNodeManager;
+import com.basho.riak.client.core.FutureOperation;
+import com.basho.riak.client.core.NodeManager;
+import com.basho.riak.client.core.RiakFuture;
+import com.basho.riak.client.core.RiakNode;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link NodeManager} that sends each operation to the less loaded of two
+ * randomly picked nodes, where load is a node's smoothed latency times its
+ * operations in flight ("power of two choices"). A slow node ends up with
+ * less traffic instead of an equal round-robin share. The latency a node
+ * is judged by fades the longer it goes without traffic (by a factor of
+ * {@code e} every {@code decay}), so a node that was slow gets tried again
+ * and can win its share back once it recovers. A node is never judged
+ * faster than its oldest attempt in flight has been outstanding, so one
+ * that stops answering loses its traffic straight away rather than once
+ * the attempts finally fail.
+ *
+ * <p>A node whose error rate reaches {@code errorThreshold} is ejected for
+ * {@code ejectionTime}, as long as another node is available. The error
+ * rate is exponentially weighted, with each attempt weighted
+ * {@code 1/window}, and is only judged once the node has made
+ * {@code window} attempts. An attempt counts as failed if the cluster
+ * retries the operation elsewhere or the operation fails outright. Retries
+ * go to a different node when there is one.</p>
+ *
+ * <p>Pass it to {@link RiakClusterManager#buildCluster(List, NodeManager)}
+ * or set {@code latencyAware: true} in {@link RiakFactory}.</p>
+ */
+public class LatencyAwareNodeManager implements NodeManager {
+    private static final Logger log = LoggerFactory.getLogger(LatencyAwareNodeManager.class);
+
+    private final List<NodeStats> nodes = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<FutureOperation, Attempt> attempts = new ConcurrentHashMap<>();
+    // Fails operations that no node will take with the client's usual NoNodesAvailableException
+    private final DefaultNodeManager fallback = new DefaultNodeManager();
+    private double smoothing = 0.3;
+    private long decayNanos = TimeUnit.SECONDS.toNanos(1);
+    private int window = 20;
+    private double errorThreshold = 0.5;
+    private long ejectionNanos = TimeUnit.SECONDS.toNanos(30);
+    private MetricRegistry metrics;
+
+    /**
+     * How much weight each new latency sample gets, between 0 (exclusive)
+     * and 1. Higher values react faster to a node slowing down.
+     */
+    public LatencyAwareNodeManager withSmoothing(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * How quickly an idle node's latency is forgotten. Shorter values retry
+     * slow nodes sooner.
+     */
+    public LatencyAwareNodeManager withDecay(long decay, TimeUnit unit) {
+        if (decay < 1) {
+            throw new IllegalArgumentException("decay must be positive");
+        }
+        this.decayNanos = unit.toNanos(decay);
+        return this;
+    }
+
+    /**
+     * Ejects a node for {@code ejectionTime} once its error rate, an
+     * exponentially weighted average that weights each attempt
+     * {@code 1/window}, reaches {@code errorThreshold}. The rate is judged
+     * only after {@code window} attempts, counting again from zero after
+     * each ejection.
+     */
+    public LatencyAwareNodeManager withEjection(double errorThreshold, int window, long ejectionTime, TimeUnit unit) {
+        if (errorThreshold <= 0 || errorThreshold > 1 || window < 1 || ejectionTime < 0) {
+            throw new IllegalArgumentException("errorThreshold must be in (0, 1], window at least 1");
+        }
+        this.errorThreshold = errorThreshold;
+        this.window = window;
+        this.ejectionNanos = unit.toNanos(ejectionTime);
+        return this;
+    }
+
+    /**
+     * Registers latency, in-flight and ejection gauges for each node under
+     * {@code LatencyAwareNodeManager.<host>:<port>}.
+     */
+    public LatencyAwareNodeManager withMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+        for (NodeStats stats : nodes) {
+            register(stats);
+        }
+        return this;
+    }
+
+    /**
+     * The node's smoothed latency in milliseconds, or 0 before its first
+     * successful operation.
+     */
+    public double getLatency(RiakNode node) {
+        NodeStats stats = statsFor(node);
+        return stats == null ? 0 : stats.latencyNanos() / 1e6;
+    }
+
+    public int getInFlight(RiakNode node) {
+        NodeStats stats = statsFor(node);
+        return stats == null ? 0 : stats.inFlight.get();
+    }
+
+    public boolean isEjected(RiakNode node) {
+        NodeStats stats = statsFor(node);
+        return stats != null && stats.isEjected(System.nanoTime());
+    }
+
+    @Override
+    public void init(List<RiakNode> riakNodes) {
+        fallback.init(riakNodes);
+        for (RiakNode node : riakNodes) {
+            track(node);
+        }
+    }
+
+    @Override
+    public void addNode(RiakNode node) {
+        fallback.addNode(node);
+        track(node);
+    }
+
+    @Override
+    public boolean removeNode(RiakNode node) {
+        NodeStats stats = statsFor(node);
+        if (stats != null) {
+            nodes.remove(stats);
+        }
+        return fallback.removeNode(node);
+    }
+
+    @Override
+    public void nodeStateChanged(RiakNode node, RiakNode.State state) {
+        fallback.nodeStateChanged(node, state);
+        NodeStats stats = statsFor(node);
+        if (stats != null) {
+            stats.healthy = state == RiakNode.State.RUNNING;
+        }
+    }
+
+    @Override
+    public void executeOnNode(FutureOperation operation, RiakNode previousNode) {
+        long now = System.nanoTime();
+        Attempt previous = attempts.remove(operation);
+        if (previous != null) {
+            // The cluster only calls back with the same operation to retry it
+            previous.node.finished(previous, false, now);
+        } else {
+            // The node manager SPI hands over raw operations
+            RiakFuture<?, ?> future = operation;
+            recordWhenDone(future);
+        }
+
+        for (NodeStats stats : candidates(previousNode, now)) {
+            Attempt attempt = new Attempt(stats, now);
+            stats.started(attempt);
+            attempts.put(operation, attempt);
+            if (stats.node.execute(operation)) {
+                return;
+            }
+            attempts.remove(operation, attempt);
+            stats.abandoned(attempt);
+        }
+        fallback.executeOnNode(operation, previousNode);
+    }
+
+    private <V, S> void recordWhenDone(RiakFuture<V, S> operation) {
+        operation.addListener(f -> {
+            Attempt last = attempts.remove(operation);
+            if (last != null) {
+                last.node.finished(last, f.isSuccess(), System.nanoTime());
+            }
+        });
+    }
+
+    /**
+     * The nodes to try, in order: the better of two random picks, then the
+     * rest from least to most loaded, with ejected, unhealthy and previous
+     * nodes at the end in case nothing else will take the operation.
+     */
+    private List<NodeStats> candidates(RiakNode previousNode, long now) {
+        List<NodeStats> preferred = new ArrayList<>();
+        List<NodeStats> lastResort = new ArrayList<>();
+        for (NodeStats stats : nodes) {
+            boolean usable = stats.healthy && !stats.isEjected(now) && stats.node != previousNode;
+            (usable ? preferred : lastResort).add(stats);
+        }
+
+        // Loads change as operations complete, so sort by a snapshot
+        Map<NodeStats, Double> loads = new HashMap<>();
+        for (NodeStats stats : nodes) {
+            loads.put(stats, stats.load(now));
+        }
+        Comparator<NodeStats> byLoad = Comparator.comparingDouble(loads::get);
+
+        preferred.sort(byLoad);
+        if (preferred.size() > 2) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(preferred.size());
+            int second = random.nextInt(preferred.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            NodeStats a = preferred.get(first);
+            NodeStats b = preferred.get(second);
+            NodeStats best = loads.get(a) <= loads.get(b) ? a : b;
+            preferred.remove(best);
+            preferred.add(0, best);
+        }
+        lastResort.sort(Comparator.comparing((NodeStats stats) -> stats.node == previousNode)
+                .thenComparing(stats -> !stats.healthy)
+                .thenComparing(byLoad));
+        preferred.addAll(lastResort);
+        return preferred;
+    }
+
+    private void track(RiakNode node) {
+        if (statsFor(node) == null) {
+            NodeStats stats = new NodeStats(node);
+            nodes.add(stats);
+            if (metrics != null) {
+                register(stats);
+            }
+        }
+    }
+
+    private void register(NodeStats stats) {
+        String prefix = MetricRegistry.name(LatencyAwareNodeManager.class, stats.name);
+        if (!metrics.getGauges().containsKey(MetricRegistry.name(prefix, "latency"))) {
+            metrics.register(MetricRegistry.name(prefix, "latency"), (Gauge<Double>) () -> stats.latencyNanos() / 1e6);
+            metrics.register(MetricRegistry.name(prefix, "in-flight"), (Gauge<Integer>) stats.inFlight::get);
+            metrics.register(MetricRegistry.name(prefix, "ejected"),
+                    (Gauge<Boolean>) () -> stats.isEjected(System.nanoTime()));
+        }
+    }
+
+    private NodeStats statsFor(RiakNode node) {
+        for (NodeStats stats : nodes) {
+            if (stats.node == node) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    private static final class Attempt {
+        final NodeStats node;
+        final long startedAt;
+
+        Attempt(NodeStats node, long startedAt) {
+            this.node = node;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final class NodeStats {
+        final RiakNode node;
+        final String name;
+        final AtomicInteger inFlight = new AtomicInteger();
+        private final Set<Attempt> running = ConcurrentHashMap.newKeySet();
+        volatile boolean healthy = true;
+        private volatile boolean ejected;
+        private volatile long ejectedUntil;
+        private double latencyNanos;
+        private double errorRate;
+        private int samples;
+        private long sampledAt;
+
+        NodeStats(RiakNode node) {
+            this.node = node;
+            this.name = node.getRemoteAddress() + ":" + node.getPort();
+        }
+
+        synchronized double latencyNanos() {
+            return latencyNanos;
+        }
+
+        double load(long now) {
+            double latency;
+            synchronized (this) {
+                double idle = Math.max(now - sampledAt, 0);
+                latency = latencyNanos * Math.exp(-idle / decayNanos);
+            }
+            for (Attempt attempt : running) {
+                latency = Math.max(latency, now - attempt.startedAt);
+            }
+            return latency * (inFlight.get() + 1);
+        }
+
+        boolean isEjected(long now) {
+            return ejected && now - ejectedUntil < 0;
+        }
+
+        void started(Attempt attempt) {
+            inFlight.incrementAndGet();
+            running.add(attempt);
+        }
+
+        /**
+         * The node wouldn't take the attempt, so it says nothing about it.
+         */
+        void abandoned(Attempt attempt) {
+            running.remove(attempt);
+            inFlight.decrementAndGet();
+        }
+
+        void finished(Attempt attempt, boolean succeeded, long now) {
+            abandoned(attempt);
+            long elapsedNanos = now - attempt.startedAt;
+            boolean failing;
+            synchronized (this) {
+                if (succeeded) {
+                    latencyNanos = latencyNanos == 0 ? elapsedNanos
+                            : latencyNanos + smoothing * (elapsedNanos - latencyNanos);
+                    sampledAt = now;
+                }
+                errorRate += ((succeeded ? 0 : 1) - errorRate) / window;
+                samples = Math.min(samples + 1, window);
+                failing = samples >= window && errorRate >= errorThreshold && !isEjected(now);
+            }
+            if (failing && hasOtherUsableNode(now)) {
+                eject(now);
+            }
+        }
+
+        private synchronized void eject(long now) {
+            if (isEjected(now)) {
+                return;
+            }
+            errorRate = 0;
+            samples = 0;
+            // Forget its latency so it gets tried again once it's back
+            latencyNanos = 0;
+            ejectedUntil = now + ejectionNanos;
+            ejected = true;
+            log.warn("Ejecting Riak node {} for {}ms after repeated errors", name,
+                    TimeUnit.NANOSECONDS.toMillis(ejectionNanos));
+        }
+
+        private boolean hasOtherUsableNode(long now) {
+            for (NodeStats other : nodes) {
+                if (other != this && other.healthy && !other.isEjected(now)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
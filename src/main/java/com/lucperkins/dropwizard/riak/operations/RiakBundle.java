@@ -0,0 +1,58 @@
+package com.lucperkins.dropwizard.riak.operations;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.core.RiakCluster;
+import io.dropwizard.Configuration;
+import io.dropwizard.ConfiguredBundle;
+import io.dropwizard.setup.Bootstrap;
+import io.dropwizard.setup.Environment;
+
+/**
+ * Builds a {@link RiakCluster} and {@link RiakClient} from the application's
+ * {@link RiakFactory}, hands the cluster to Dropwizard's lifecycle through a
+ * {@link RiakClusterManager}, and registers a {@link RiakHealthCheck} backed
+ * by a managed {@link RiakNodeProber}:
+ *
+ * <pre>
+ * private final RiakBundle&lt;MyConfiguration&gt; riak = new RiakBundle&lt;MyConfiguration&gt;() {
+ *     public RiakFactory getRiakFactory(MyConfiguration config) {
+ *         return config.getRiak();
+ *     }
+ * };
+ * </pre>
+ */
+public abstract class RiakBundle<T extends Configuration> implements ConfiguredBundle<T> {
+    private RiakCluster cluster;
+    private RiakClusterManager manager;
+    private RiakNodeProber prober;
+    private RiakClient client;
+
+    public abstract RiakFactory getRiakFactory(T configuration);
+
+    protected String getHealthCheckName() {
+        return "riak";
+    }
+
+    @Override
+    public void initialize(Bootstrap<?> bootstrap) {
+    }
+
+    @Override
+    public void run(T configuration, Environment environment) throws Exception {
+        cluster = getRiakFactory(configuration).build(environment);
+        manager = new RiakClusterManager(cluster);
+        client = new RiakClient(cluster);
+
+        prober = new RiakNodeProber(cluster);
+
+        // Managed objects stop in reverse order, so the prober stops first
+        environment.lifecycle().manage(manager);
+        environment.lifecycle().manage(prober);
+        environment.healthChecks().register(getHealthCheckName(), new RiakHealthCheck(prober));
+    }
+
+    public RiakCluster getCluster() { return cluster; }
+    public RiakClusterManager getManager() { return manager; }
+    public RiakNodeProber getProber() { return prober; }
+    public RiakClient getClient() { return client; }
+}
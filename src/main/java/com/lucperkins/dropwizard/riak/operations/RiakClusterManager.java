@@ -3,8 +3,10 @@ package com.lucperkins.dropwizard.riak.operations;
 import com.basho.riak.client.api.RiakClient;
 import com.basho.riak.client.api.cap.ConflictResolver;
 import com.basho.riak.client.api.cap.ConflictResolverFactory;
+import com.basho.riak.client.core.NodeManager;
 import com.basho.riak.client.core.RiakCluster;
 import com.basho.riak.client.core.RiakNode;
+import com.lucperkins.dropwizard.riak.dao.RiakWriteBuffer;
 import io.dropwizard.lifecycle.Managed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,11 +14,13 @@ import org.slf4j.LoggerFactory;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class RiakClusterManager implements Managed {
     private static final Logger log = LoggerFactory.getLogger(RiakClusterManager.class);
     private ConflictResolverFactory factory;
     private RiakCluster cluster;
+    private final List<RiakWriteBuffer> writeBuffers = new CopyOnWriteArrayList<>();
 
     public RiakClusterManager(RiakCluster cluster) {
         this.cluster = cluster;
@@ -31,6 +35,9 @@ public class RiakClusterManager implements Managed {
 
     @Override
     public void stop() {
+        for (RiakWriteBuffer buffer : writeBuffers) {
+            buffer.close();
+        }
         cluster.shutdown();
         log.info("Riak cluster shut down successfully");
     }
@@ -44,7 +51,24 @@ public class RiakClusterManager implements Managed {
     }
 
     public static RiakCluster buildCluster(List<HostAndPort> connectionInfo) throws UnknownHostException {
-        RiakNode.Builder nodeBuilder = new RiakNode.Builder();
+        List<RiakNode> nodes = buildNodes(connectionInfo, new RiakNode.Builder());
+        RiakCluster cluster = RiakCluster.builder(nodes).build();
+        return cluster;
+    }
+
+    /**
+     * Builds a cluster that picks a node for each operation with
+     * {@code nodeManager}, e.g. a {@link LatencyAwareNodeManager}, instead of
+     * the client's round robin.
+     */
+    public static RiakCluster buildCluster(List<HostAndPort> connectionInfo, NodeManager nodeManager)
+            throws UnknownHostException {
+        List<RiakNode> nodes = buildNodes(connectionInfo, new RiakNode.Builder());
+        return RiakCluster.builder(nodes).withNodeManager(nodeManager).build();
+    }
+
+    public static List<RiakNode> buildNodes(List<HostAndPort> connectionInfo, RiakNode.Builder nodeBuilder)
+            throws UnknownHostException {
         List<RiakNode> nodes = new LinkedList<>();
 
         for (HostAndPort info : connectionInfo) {
@@ -55,11 +79,23 @@ public class RiakClusterManager implements Managed {
             nodes.add(node);
         }
 
-        RiakCluster cluster = RiakCluster.builder(nodes).build();
-        return cluster;
+        return nodes;
     }
 
+    /**
+     * Registers {@code resolver} with the client for every fetch and update
+     * of {@code clazz} in the JVM. To scope a resolver to one DAO or bucket,
+     * use {@link com.lucperkins.dropwizard.riak.dao.RiakDAO#withResolver}.
+     */
     public void registerConflictResolver(Class clazz, ConflictResolver resolver) {
         factory.registerConflictResolver(clazz, resolver);
     }
+
+    /**
+     * Has {@link #stop()} flush the buffer's pending writes, and wait for
+     * them, before the cluster is shut down.
+     */
+    public void registerWriteBuffer(RiakWriteBuffer buffer) {
+        writeBuffers.add(buffer);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.lucperkins.dropwizard.riak.operations;
+
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import org.hibernate.validator.constraints.NotEmpty;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * YAML-bindable connection settings for a Riak cluster. Anything left out
+ * falls back to the Riak client's defaults. For example:
+ *
+ * <pre>
+ * riak:
+ *   nodes:
+ *     - host: 10.0.0.1
+ *       port: 8087
+ *     - host: 10.0.0.2
+ *       port: 8087
+ *   minConnections: 10
+ *   maxConnections: 200
+ *   idleTimeout: 1s
+ *   connectionTimeout: 500ms
+ *   executorThreads: 8
+ *   latencyAware: true
+ * </pre>
+ *
+ * <p>With {@code latencyAware} set, operations are routed by a
+ * {@link LatencyAwareNodeManager} instead of round robin.</p>
+ */
+public class RiakFactory {
+    @Valid
+    @NotEmpty
+    @JsonProperty
+    private List<HostAndPort> nodes = new LinkedList<>();
+
+    @Min(0)
+    @JsonProperty
+    private int minConnections = RiakNode.Builder.DEFAULT_MIN_CONNECTIONS;
+
+    @Min(0)
+    @JsonProperty
+    private int maxConnections = RiakNode.Builder.DEFAULT_MAX_CONNECTIONS;
+
+    @JsonProperty
+    private boolean blockOnMaxConnections = false;
+
+    @NotNull
+    @JsonProperty
+    private Duration idleTimeout = Duration.milliseconds(RiakNode.Builder.DEFAULT_IDLE_TIMEOUT);
+
+    @NotNull
+    @JsonProperty
+    private Duration connectionTimeout = Duration.milliseconds(RiakNode.Builder.DEFAULT_CONNECTION_TIMEOUT);
+
+    @Min(1)
+    @JsonProperty
+    private int executionAttempts = RiakCluster.Builder.DEFAULT_EXECUTION_ATTEMPTS;
+
+    @Min(0)
+    @JsonProperty
+    private int executorThreads = 0;
+
+    @JsonProperty
+    private boolean latencyAware = false;
+
+    public List<HostAndPort> getNodes() { return nodes; }
+    public int getMinConnections() { return minConnections; }
+    public int getMaxConnections() { return maxConnections; }
+    public boolean isBlockOnMaxConnections() { return blockOnMaxConnections; }
+    public Duration getIdleTimeout() { return idleTimeout; }
+    public Duration getConnectionTimeout() { return connectionTimeout; }
+    public int getExecutionAttempts() { return executionAttempts; }
+    public int getExecutorThreads() { return executorThreads; }
+    public boolean isLatencyAware() { return latencyAware; }
+
+    public void setNodes(List<HostAndPort> nodes) { this.nodes = nodes; }
+    public void setMinConnections(int minConnections) { this.minConnections = minConnections; }
+    public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+    public void setBlockOnMaxConnections(boolean blockOnMaxConnections) { this.blockOnMaxConnections = blockOnMaxConnections; }
+    public void setIdleTimeout(Duration idleTimeout) { this.idleTimeout = idleTimeout; }
+    public void setConnectionTimeout(Duration connectionTimeout) { this.connectionTimeout = connectionTimeout; }
+    public void setExecutionAttempts(int executionAttempts) { this.executionAttempts = executionAttempts; }
+    public void setExecutorThreads(int executorThreads) { this.executorThreads = executorThreads; }
+    public void setLatencyAware(boolean latencyAware) { this.latencyAware = latencyAware; }
+
+    public RiakNode.Builder nodeBuilder() {
+        return new RiakNode.Builder()
+                .withMinConnections(minConnections)
+                .withMaxConnections(maxConnections)
+                .withBlockOnMaxConnections(blockOnMaxConnections)
+                .withIdleTimeout((int) idleTimeout.toMilliseconds())
+                .withConnectionTimeout((int) connectionTimeout.toMilliseconds());
+    }
+
+    /**
+     * Builds the cluster with the client's own executor. Setting
+     * {@code executorThreads} requires {@link #build(Environment)}, which
+     * can manage the executor's lifecycle.
+     */
+    public RiakCluster build() throws UnknownHostException {
+        if (executorThreads > 0) {
+            throw new IllegalStateException("executorThreads is only applied by build(Environment)");
+        }
+        return clusterBuilder().build();
+    }
+
+    /**
+     * Builds the cluster with its executor owned by the environment's
+     * lifecycle, so it is shut down along with the application.
+     */
+    public RiakCluster build(Environment environment) throws UnknownHostException {
+        RiakCluster.Builder builder = clusterBuilder();
+        if (executorThreads > 0) {
+            ScheduledExecutorService executor = environment.lifecycle()
+                    .scheduledExecutorService("riak-%d")
+                    .threads(executorThreads)
+                    .build();
+            builder.withExecutor(executor);
+        }
+        return builder.build();
+    }
+
+    private RiakCluster.Builder clusterBuilder() throws UnknownHostException {
+        List<RiakNode> riakNodes = RiakClusterManager.buildNodes(nodes, nodeBuilder());
+        RiakCluster.Builder builder = RiakCluster.builder(riakNodes)
+                .withExecutionAttempts(executionAttempts);
+        if (latencyAware) {
+            builder.withNodeManager(new LatencyAwareNodeManager());
+        }
+        return builder;
+    }
+}
@@ -6,33 +6,107 @@ import com.codahale.metrics.health.HealthCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports what a {@link RiakNodeProber} last saw, without going to Riak, so
+ * health polls return immediately and add no traffic. The check is healthy
+ * when every probed node answered its last ping, healthy but degraded when
+ * only some did, and unhealthy when none did or no ping has finished yet.
+ * The message lists each node's state, latency and availability.
+ */
 public class RiakHealthCheck extends HealthCheck {
     private static final Logger log = LoggerFactory.getLogger(RiakHealthCheck.class);
+    private final RiakNodeProber prober;
     private final RiakCluster cluster;
     private final String healthyMessage;
     private final String unhealthyMessage;
 
+    public RiakHealthCheck(RiakNodeProber prober, String healthyMessage, String unhealthyMessage) {
+        this.prober = prober;
+        this.cluster = null;
+        this.healthyMessage = healthyMessage;
+        this.unhealthyMessage = unhealthyMessage;
+    }
+
+    public RiakHealthCheck(RiakNodeProber prober) {
+        this(prober, "Riak is healthy", "Riak is down");
+    }
+
+    /**
+     * Pings the cluster on every poll and waits for the answer, as this
+     * check used to.
+     *
+     * @deprecated pass in a {@link RiakNodeProber} that's managed by
+     * Dropwizard's lifecycle instead
+     */
+    @Deprecated
     public RiakHealthCheck(RiakCluster cluster, String healthyMessage, String unhealthyMessage) {
+        this.prober = null;
         this.cluster = cluster;
         this.healthyMessage = healthyMessage;
         this.unhealthyMessage = unhealthyMessage;
     }
 
+    /**
+     * @deprecated pass in a {@link RiakNodeProber} that's managed by
+     * Dropwizard's lifecycle instead
+     */
+    @Deprecated
     public RiakHealthCheck(RiakCluster cluster) {
-        this.cluster = cluster;
-        this.healthyMessage = "Riak is healthy";
-        this.unhealthyMessage = "Riak is down";
+        this(cluster, "Riak is healthy", "Riak is down");
+    }
+
+    /**
+     * The prober this check reports on, or null if it was built from a
+     * {@link RiakCluster}.
+     */
+    public RiakNodeProber getProber() {
+        return prober;
     }
 
     @Override
     protected Result check() throws Exception {
+        if (prober == null) {
+            return ping();
+        }
+
+        List<String> states = new ArrayList<>();
+        int probed = 0;
+        int down = 0;
+        for (RiakNodeProber.NodeHealth node : prober.getNodes()) {
+            if (!node.hasBeenProbed()) {
+                states.add(node.getName() + " not probed yet");
+                continue;
+            }
+            probed++;
+            if (!node.isUp()) {
+                down++;
+            }
+            states.add(String.format("%s %s, %.1fms, %.0f%% available", node.getName(),
+                    node.isUp() ? "up" : "down", node.getLatency(), node.getAvailability() * 100));
+        }
+
+        String details = " (" + String.join("; ", states) + ")";
+        if (probed == 0) {
+            return Result.unhealthy(unhealthyMessage + ": no node has been probed yet");
+        } else if (down == probed) {
+            return Result.unhealthy(unhealthyMessage + details);
+        } else if (down > 0) {
+            return Result.healthy(healthyMessage + ", degraded: " + down + " of " + states.size()
+                    + " nodes down" + details);
+        }
+        return Result.healthy(healthyMessage + details);
+    }
+
+    private Result ping() throws Exception {
         try {
             PingOperation ping = new PingOperation();
             cluster.execute(ping);
             ping.await();
 
             if (ping.isSuccess()) {
-                log.info(healthyMessage);
                 return Result.healthy(healthyMessage);
             } else {
                 log.error(unhealthyMessage);
@@ -42,4 +116,4 @@ public class RiakHealthCheck extends HealthCheck {
             throw new Exception(e);
         }
     }
-}
\ No newline at end of file
+}
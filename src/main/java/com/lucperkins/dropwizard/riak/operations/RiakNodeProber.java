@@ -0,0 +1,269 @@
+package com.lucperkins.dropwizard.riak.operations;
+
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.basho.riak.client.core.operations.PingOperation;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pings every node of a cluster in the background, each on its own
+ * schedule, and keeps each node's smoothed latency and availability so that
+ * {@link RiakHealthCheck} can answer without going to Riak. A ping that
+ * hasn't been answered within {@code timeout} counts as failed. It stays in
+ * flight, holding its connection, so while it does the node isn't pinged
+ * again and each of its turns counts as another failure: a hung node has at
+ * most one ping outstanding.
+ *
+ * <p>The prober watches the nodes the cluster has when it starts. Register
+ * it with Dropwizard's lifecycle after the {@link RiakClusterManager}, so it
+ * starts after the cluster and stops before it. State changes are logged;
+ * individual pings are not.</p>
+ */
+public class RiakNodeProber implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(RiakNodeProber.class);
+
+    private final RiakCluster cluster;
+    private volatile List<NodeHealth> nodes = Collections.emptyList();
+    private long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+    private long timeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    private double smoothing = 0.3;
+    private ScheduledExecutorService scheduler;
+
+    public RiakNodeProber(RiakCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * How long to wait between the start of one ping to a node and the
+     * next. Each wait is varied by up to 10% so nodes don't stay in step.
+     */
+    public RiakNodeProber withInterval(long interval, TimeUnit unit) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.intervalNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    public RiakNodeProber withTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.timeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * How much weight each ping gets in a node's latency and availability,
+     * between 0 (exclusive) and 1.
+     */
+    public RiakNodeProber withSmoothing(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * The health of each node, in the order the cluster lists them. Empty
+     * until the prober starts.
+     */
+    public List<NodeHealth> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        List<NodeHealth> probed = new ArrayList<>();
+        for (RiakNode node : cluster.getNodes()) {
+            probed.add(new NodeHealth(node));
+        }
+        nodes = Collections.unmodifiableList(probed);
+        // A thread per node, so a node whose pool blocks on a connection
+        // doesn't hold up the others' pings or timeouts
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(probed.size() + 1, r -> {
+            Thread t = new Thread(r, "riak-node-prober");
+            t.setDaemon(true);
+            return t;
+        });
+        for (NodeHealth health : probed) {
+            scheduler.execute(() -> probe(scheduler, health));
+        }
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void probe(ScheduledExecutorService scheduler, NodeHealth health) {
+        long start = System.nanoTime();
+        AtomicBoolean finished = new AtomicBoolean();
+        PingOperation previous = health.outstanding;
+        if (previous != null && !previous.isDone()) {
+            finish(scheduler, health, finished, false, start);
+            return;
+        }
+        PingOperation ping = new PingOperation();
+        health.outstanding = ping;
+        boolean sent;
+        try {
+            sent = health.node.execute(ping);
+        } catch (IllegalStateException e) {
+            // The node isn't running. Before the cluster starts that says
+            // nothing about its health, so wait for the next ping.
+            if (health.node.getNodeState() == RiakNode.State.CREATED) {
+                finished.set(true);
+                scheduleNext(scheduler, health, start);
+                return;
+            }
+            sent = false;
+        }
+        if (!sent) {
+            finish(scheduler, health, finished, false, start);
+            return;
+        }
+        try {
+            ScheduledFuture<?> timeout = scheduler.schedule(
+                    () -> finish(scheduler, health, finished, false, start), timeoutNanos, TimeUnit.NANOSECONDS);
+            ping.addListener(f -> {
+                timeout.cancel(false);
+                finish(scheduler, health, finished, f.isSuccess(), start);
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    private void finish(ScheduledExecutorService scheduler, NodeHealth health, AtomicBoolean finished,
+                        boolean succeeded, long start) {
+        if (finished.compareAndSet(false, true)) {
+            health.record(succeeded, System.nanoTime() - start);
+            scheduleNext(scheduler, health, start);
+        }
+    }
+
+    private void scheduleNext(ScheduledExecutorService scheduler, NodeHealth health, long start) {
+        long jitter = (long) (intervalNanos * 0.1 * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        long delay = start + intervalNanos + jitter - System.nanoTime();
+        try {
+            scheduler.schedule(() -> probe(scheduler, health), Math.max(delay, 0), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * What the prober has seen of one node so far.
+     */
+    public final class NodeHealth {
+        private final RiakNode node;
+        private final String name;
+        private volatile PingOperation outstanding;
+        private boolean up;
+        private long probes;
+        private int consecutiveFailures;
+        private double latencyNanos;
+        private double availability;
+        private long lastProbeMillis;
+
+        NodeHealth(RiakNode node) {
+            this.node = node;
+            this.name = node.getRemoteAddress() + ":" + node.getPort();
+        }
+
+        public RiakNode getNode() {
+            return node;
+        }
+
+        /**
+         * The node's address as {@code host:port}.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public synchronized boolean hasBeenProbed() {
+            return probes > 0;
+        }
+
+        /**
+         * Whether the node answered its last ping in time.
+         */
+        public synchronized boolean isUp() {
+            return up;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * Smoothed ping latency in milliseconds, or 0 before the first
+         * successful ping.
+         */
+        public synchronized double getLatency() {
+            return latencyNanos / 1e6;
+        }
+
+        /**
+         * Smoothed fraction of pings answered in time, between 0 and 1.
+         */
+        public synchronized double getAvailability() {
+            return availability;
+        }
+
+        /**
+         * When the last ping finished, in milliseconds since the epoch, or 0
+         * if none has.
+         */
+        public synchronized long getLastProbe() {
+            return lastProbeMillis;
+        }
+
+        private void record(boolean succeeded, long elapsedNanos) {
+            boolean wasUp;
+            boolean first;
+            synchronized (this) {
+                wasUp = up;
+                first = probes == 0;
+                up = succeeded;
+                consecutiveFailures = succeeded ? 0 : consecutiveFailures + 1;
+                if (succeeded) {
+                    latencyNanos = latencyNanos == 0 ? elapsedNanos
+                            : latencyNanos + smoothing * (elapsedNanos - latencyNanos);
+                }
+                double sample = succeeded ? 1 : 0;
+                availability = first ? sample : availability + smoothing * (sample - availability);
+                probes++;
+                lastProbeMillis = System.currentTimeMillis();
+            }
+            if (!succeeded && (wasUp || first)) {
+                log.warn("Riak node {} is not answering pings", name);
+            } else if (succeeded && !wasUp && !first) {
+                log.info("Riak node {} is answering pings again", name);
+            }
+        }
+    }
+}
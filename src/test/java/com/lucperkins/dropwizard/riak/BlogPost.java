@@ -0,0 +1,27 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.api.annotations.RiakIndex;
+import com.lucperkins.dropwizard.riak.dao.RiakableObject;
+
+public class BlogPost extends RiakableObject {
+    private String title;
+
+    @RiakIndex(name = "author")
+    private String author;
+
+    @RiakIndex(name = "published")
+    private Long published;
+
+    public BlogPost(String slug, String title, String author, long published) {
+        this.title = title; this.author = author; this.published = published;
+
+        setBucket("posts");
+        setKey(slug);
+    }
+
+    public String getTitle() { return title; }
+    public String getAuthor() { return author; }
+    public Long getPublished() { return published; }
+
+    public BlogPost() { /* Jackson JSON deserialization */ }
+}
@@ -0,0 +1,704 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.basho.riak.protobuf.RiakDtPB.DtFetchReq;
+import com.basho.riak.protobuf.RiakDtPB.DtFetchResp;
+import com.basho.riak.protobuf.RiakDtPB.DtOp;
+import com.basho.riak.protobuf.RiakDtPB.DtUpdateReq;
+import com.basho.riak.protobuf.RiakDtPB.DtUpdateResp;
+import com.basho.riak.protobuf.RiakDtPB.DtValue;
+import com.basho.riak.protobuf.RiakDtPB.MapEntry;
+import com.basho.riak.protobuf.RiakDtPB.MapField;
+import com.basho.riak.protobuf.RiakDtPB.MapOp;
+import com.basho.riak.protobuf.RiakDtPB.MapUpdate;
+import com.basho.riak.protobuf.RiakDtPB.SetOp;
+import com.basho.riak.protobuf.RiakKvPB.RpbContent;
+import com.basho.riak.protobuf.RiakKvPB.RpbDelReq;
+import com.basho.riak.protobuf.RiakKvPB.RpbGetReq;
+import com.basho.riak.protobuf.RiakKvPB.RpbGetResp;
+import com.basho.riak.protobuf.RiakKvPB.RpbIndexReq;
+import com.basho.riak.protobuf.RiakKvPB.RpbIndexResp;
+import com.basho.riak.protobuf.RiakKvPB.RpbPutReq;
+import com.basho.riak.protobuf.RiakKvPB.RpbPutResp;
+import com.basho.riak.protobuf.RiakMessageCodes;
+import com.basho.riak.protobuf.RiakPB.RpbErrorResp;
+import com.basho.riak.protobuf.RiakPB.RpbPair;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.lucperkins.dropwizard.riak.operations.HostAndPort;
+import com.lucperkins.dropwizard.riak.operations.RiakClusterManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for a Riak node that speaks enough of the protocol
+ * buffers API (ping, get, put, delete, secondary index queries and data type
+ * fetches and updates) to back a real {@link RiakCluster}. Objects are kept
+ * in memory, with vclocks and siblings: as in Riak 2.0, {@code allow_mult} is
+ * on for every bucket type except {@code default}. There is no replication,
+ * so quorum options are ignored.
+ *
+ * <p>Data types live in bucket types configured with {@link #withDatatype};
+ * {@code counters}, {@code sets} and {@code maps} are set up by default.
+ * Contexts are handed out but not checked.</p>
+ *
+ * <p>Latency and failures can be injected to exercise timeouts, retries and
+ * health checks, and {@link #suspend()} takes the node off the network until
+ * {@link #resume()} is called.</p>
+ */
+public class FakeRiakServer implements Closeable {
+    private static final ByteString DEFAULT_TYPE = ByteString.copyFromUtf8("default");
+    private static final int INDEX_CHUNK_SIZE = 100;
+
+    private final ConcurrentMap<List<ByteString>, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<ByteString, Boolean> allowMult = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<ByteString>, Object> datatypes = new ConcurrentHashMap<>();
+    private final Map<ByteString, DtFetchResp.DataType> datatypeTypes = new ConcurrentHashMap<>();
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger failNext = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fake-riak");
+        t.setDaemon(true);
+        return t;
+    });
+
+    {
+        withDatatype("counters", DtFetchResp.DataType.COUNTER);
+        withDatatype("sets", DtFetchResp.DataType.SET);
+        withDatatype("maps", DtFetchResp.DataType.MAP);
+    }
+
+    private volatile long minLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile double errorRate;
+    private volatile String errorMessage = "overload";
+    private ServerSocket serverSocket;
+    private int port;
+
+    public FakeRiakServer start() throws IOException {
+        bind(0);
+        return this;
+    }
+
+    /**
+     * Closes the listening socket and every open connection, as if the node
+     * had gone down. Stored objects are kept.
+     */
+    public synchronized void suspend() throws IOException {
+        serverSocket.close();
+        for (Socket socket : connections) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Starts listening again on the same port after {@link #suspend()}.
+     */
+    public synchronized void resume() throws IOException {
+        bind(port);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public HostAndPort getHostAndPort() {
+        return new HostAndPort(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    /**
+     * Builds an unstarted cluster with a single node pointing at this server.
+     */
+    public RiakCluster buildCluster() throws IOException {
+        return buildCluster(new RiakNode.Builder());
+    }
+
+    public RiakCluster buildCluster(RiakNode.Builder nodeBuilder) throws IOException {
+        List<RiakNode> nodes = RiakClusterManager.buildNodes(Collections.singletonList(getHostAndPort()), nodeBuilder);
+        return RiakCluster.builder(nodes).build();
+    }
+
+    /**
+     * Delays every response by {@code latency}.
+     */
+    public FakeRiakServer withLatency(long latency, TimeUnit unit) {
+        return withLatency(latency, latency, unit);
+    }
+
+    /**
+     * Delays every response by a uniformly distributed amount between
+     * {@code min} and {@code max}.
+     */
+    public FakeRiakServer withLatency(long min, long max, TimeUnit unit) {
+        this.minLatencyNanos = unit.toNanos(min);
+        this.maxLatencyNanos = unit.toNanos(max);
+        return this;
+    }
+
+    /**
+     * Answers the given fraction of requests, chosen at random, with an
+     * error response.
+     */
+    public FakeRiakServer withErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Answers the next {@code count} requests with an error response. Note
+     * that the cluster retries failed operations (three attempts by default).
+     */
+    public FakeRiakServer failNext(int count) {
+        failNext.set(count);
+        return this;
+    }
+
+    /**
+     * The message of injected error responses, {@code overload} (what Riak
+     * answers when its vnodes are overloaded) by default.
+     */
+    public FakeRiakServer withErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+        return this;
+    }
+
+    public FakeRiakServer withAllowMult(String bucketType, boolean allowMult) {
+        this.allowMult.put(ByteString.copyFromUtf8(bucketType), allowMult);
+        return this;
+    }
+
+    /**
+     * Makes {@code bucketType} hold data types of the given kind, like
+     * setting its {@code datatype} property in Riak.
+     */
+    public FakeRiakServer withDatatype(String bucketType, DtFetchResp.DataType datatype) {
+        this.datatypeTypes.put(ByteString.copyFromUtf8(bucketType), datatype);
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    public void clear() {
+        objects.clear();
+        datatypes.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket != null) {
+            suspend();
+        }
+        executor.shutdownNow();
+    }
+
+    private void bind(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+        this.serverSocket = server;
+        this.port = server.getLocalPort();
+        executor.execute(() -> acceptLoop(server));
+    }
+
+    private void acceptLoop(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                int length = in.readInt();
+                byte code = in.readByte();
+                byte[] body = new byte[length - 1];
+                in.readFully(body);
+                requests.incrementAndGet();
+
+                delay();
+                for (Reply reply : shouldFail() ? Collections.singletonList(error(errorMessage)) : handle(code, body)) {
+                    byte[] message = reply.body();
+                    out.writeInt(message.length + 1);
+                    out.writeByte(reply.code);
+                    out.write(message);
+                }
+                out.flush();
+            }
+        } catch (EOFException | SocketException e) {
+            // Client hung up or the server was suspended.
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long min = minLatencyNanos;
+        long max = maxLatencyNanos;
+        if (max > 0) {
+            TimeUnit.NANOSECONDS.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max));
+        }
+    }
+
+    private boolean shouldFail() {
+        int remaining;
+        while ((remaining = failNext.get()) > 0) {
+            if (failNext.compareAndSet(remaining, remaining - 1)) {
+                return true;
+            }
+        }
+        double rate = errorRate;
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private List<Reply> handle(byte code, byte[] body) throws InvalidProtocolBufferException {
+        switch (code) {
+            case RiakMessageCodes.MSG_PingReq:
+                return reply(RiakMessageCodes.MSG_PingResp, new byte[0]);
+            case RiakMessageCodes.MSG_GetReq:
+                return get(RpbGetReq.parseFrom(body));
+            case RiakMessageCodes.MSG_PutReq:
+                return put(RpbPutReq.parseFrom(body));
+            case RiakMessageCodes.MSG_DelReq:
+                return delete(RpbDelReq.parseFrom(body));
+            case RiakMessageCodes.MSG_IndexReq:
+                return index(RpbIndexReq.parseFrom(body));
+            case RiakMessageCodes.MSG_DtFetchReq:
+                return fetchDatatype(DtFetchReq.parseFrom(body));
+            case RiakMessageCodes.MSG_DtUpdateReq:
+                return updateDatatype(DtUpdateReq.parseFrom(body));
+            default:
+                return Collections.singletonList(error("Unsupported message code " + code));
+        }
+    }
+
+    private List<Reply> get(RpbGetReq req) {
+        StoredObject stored = objects.get(key(req.hasType() ? req.getType() : null, req.getBucket(), req.getKey()));
+        RpbGetResp.Builder resp = RpbGetResp.newBuilder();
+        if (stored == null) {
+            return reply(RiakMessageCodes.MSG_GetResp, resp.build().toByteArray());
+        }
+        if (req.hasIfModified() && req.getIfModified().equals(stored.vclock)) {
+            return reply(RiakMessageCodes.MSG_GetResp, resp.setUnchanged(true).build().toByteArray());
+        }
+
+        resp.setVclock(stored.vclock);
+        for (RpbContent sibling : stored.siblings) {
+            resp.addContent(req.getHead() ? withoutValue(sibling) : sibling);
+        }
+        return reply(RiakMessageCodes.MSG_GetResp, resp.build().toByteArray());
+    }
+
+    private List<Reply> put(RpbPutReq req) {
+        ByteString type = req.hasType() ? req.getType() : DEFAULT_TYPE;
+        ByteString key = req.hasKey() ? req.getKey() : ByteString.copyFromUtf8(UUID.randomUUID().toString());
+        List<ByteString> id = key(type, req.getBucket(), key);
+        RpbContent content = stamp(req.getContent());
+
+        StoredObject stored;
+        synchronized (objects) {
+            StoredObject existing = objects.get(id);
+            if (req.getIfNoneMatch() && existing != null) {
+                return Collections.singletonList(error("match_found"));
+            }
+            if (req.getIfNotModified() && (existing == null || !existing.vclock.equals(req.getVclock()))) {
+                return Collections.singletonList(error("modified"));
+            }
+
+            List<RpbContent> siblings = new ArrayList<>();
+            // A write that didn't see the current value is concurrent with it
+            if (existing != null && allowsSiblings(type) && !existing.vclock.equals(req.getVclock())) {
+                siblings.addAll(existing.siblings);
+            }
+            siblings.add(content);
+            stored = new StoredObject(nextVClock(), siblings);
+            objects.put(id, stored);
+        }
+
+        RpbPutResp.Builder resp = RpbPutResp.newBuilder();
+        if (!req.hasKey()) {
+            resp.setKey(key);
+        }
+        if (req.getReturnBody() || req.getReturnHead()) {
+            resp.setVclock(stored.vclock);
+            for (RpbContent sibling : stored.siblings) {
+                resp.addContent(req.getReturnBody() ? sibling : withoutValue(sibling));
+            }
+        }
+        return reply(RiakMessageCodes.MSG_PutResp, resp.build().toByteArray());
+    }
+
+    private List<Reply> delete(RpbDelReq req) {
+        objects.remove(key(req.hasType() ? req.getType() : null, req.getBucket(), req.getKey()));
+        return reply(RiakMessageCodes.MSG_DelResp, new byte[0]);
+    }
+
+    /**
+     * Equality and range queries on {@code _int} and {@code _bin} indexes and
+     * on {@code $key} and {@code $bucket}, sorted by term and then key, with
+     * {@code max_results} pagination. The continuation is the last term/key
+     * pair returned.
+     */
+    private List<Reply> index(RpbIndexReq req) throws InvalidProtocolBufferException {
+        ByteString type = req.hasType() ? req.getType() : DEFAULT_TYPE;
+        String index = req.getIndex().toStringUtf8();
+        boolean numeric = index.endsWith("_int");
+        Comparator<ByteString> terms = numeric ? FakeRiakServer::compareNumeric : FakeRiakServer::compareBytes;
+        ByteString min = req.getQtype() == RpbIndexReq.IndexQueryType.eq ? req.getKey() : req.getRangeMin();
+        ByteString max = req.getQtype() == RpbIndexReq.IndexQueryType.eq ? req.getKey() : req.getRangeMax();
+
+        List<RpbPair> matches = new ArrayList<>();
+        for (Map.Entry<List<ByteString>, StoredObject> entry : objects.entrySet()) {
+            List<ByteString> id = entry.getKey();
+            if (!id.get(0).equals(type) || !id.get(1).equals(req.getBucket())) {
+                continue;
+            }
+            ByteString key = id.get(2);
+            for (ByteString term : termsFor(index, key, entry.getValue())) {
+                if (index.equals("$bucket")
+                        || (terms.compare(term, min) >= 0 && terms.compare(term, max) <= 0)) {
+                    matches.add(RpbPair.newBuilder().setKey(term).setValue(key).build());
+                }
+            }
+        }
+
+        Comparator<RpbPair> order = (a, b) -> {
+            int byTerm = terms.compare(a.getKey(), b.getKey());
+            return byTerm != 0 ? byTerm : compareBytes(a.getValue(), b.getValue());
+        };
+        Collections.sort(matches, order);
+
+        int from = 0;
+        if (req.hasContinuation()) {
+            RpbPair last = RpbPair.parseFrom(req.getContinuation());
+            while (from < matches.size() && order.compare(matches.get(from), last) <= 0) {
+                from++;
+            }
+        }
+        int to = req.hasMaxResults() ? Math.min(matches.size(), from + req.getMaxResults()) : matches.size();
+        List<RpbPair> page = matches.subList(from, to);
+        ByteString continuation = to < matches.size() ? matches.get(to - 1).toByteString() : null;
+
+        List<Reply> replies = new ArrayList<>();
+        int chunkSize = req.getStream() ? INDEX_CHUNK_SIZE : Math.max(page.size(), 1);
+        for (int i = 0; i < page.size() || i == 0; i += chunkSize) {
+            RpbIndexResp.Builder resp = RpbIndexResp.newBuilder();
+            for (RpbPair pair : page.subList(i, Math.min(page.size(), i + chunkSize))) {
+                if (req.getReturnTerms()) {
+                    resp.addResults(pair);
+                } else {
+                    resp.addKeys(pair.getValue());
+                }
+            }
+            replies.add(new Reply(RiakMessageCodes.MSG_IndexResp, resp));
+        }
+
+        RpbIndexResp.Builder last = replies.get(replies.size() - 1).message;
+        if (continuation != null) {
+            last.setContinuation(continuation);
+        }
+        if (req.getStream()) {
+            last.setDone(true);
+        }
+        return replies;
+    }
+
+    private static List<ByteString> termsFor(String index, ByteString key, StoredObject stored) {
+        if (index.equals("$key") || index.equals("$bucket")) {
+            return Collections.singletonList(key);
+        }
+        List<ByteString> terms = new ArrayList<>();
+        for (RpbContent sibling : stored.siblings) {
+            for (RpbPair pair : sibling.getIndexesList()) {
+                if (pair.getKey().toStringUtf8().equals(index) && !terms.contains(pair.getValue())) {
+                    terms.add(pair.getValue());
+                }
+            }
+        }
+        return terms;
+    }
+
+    private List<Reply> fetchDatatype(DtFetchReq req) {
+        DtFetchResp.DataType datatype = datatypeTypes.get(req.getType());
+        if (datatype == null) {
+            return Collections.singletonList(error("Bucket type " + req.getType().toStringUtf8() + " has no datatype"));
+        }
+
+        DtFetchResp.Builder resp = DtFetchResp.newBuilder().setType(datatype);
+        Object value = datatypes.get(key(req.getType(), req.getBucket(), req.getKey()));
+        if (value != null) {
+            resp.setValue(toDtValue(value)).setContext(nextVClock());
+        }
+        return reply(RiakMessageCodes.MSG_DtFetchResp, resp.build().toByteArray());
+    }
+
+    private List<Reply> updateDatatype(DtUpdateReq req) {
+        DtFetchResp.DataType datatype = datatypeTypes.get(req.getType());
+        if (datatype == null) {
+            return Collections.singletonList(error("Bucket type " + req.getType().toStringUtf8() + " has no datatype"));
+        }
+        ByteString key = req.hasKey() ? req.getKey() : ByteString.copyFromUtf8(UUID.randomUUID().toString());
+        List<ByteString> id = key(req.getType(), req.getBucket(), key);
+        DtOp op = req.getOp();
+
+        Object updated;
+        synchronized (datatypes) {
+            Object current = datatypes.get(id);
+            if (datatype == DtFetchResp.DataType.COUNTER && op.hasCounterOp()) {
+                updated = (current == null ? 0L : (Long) current) + op.getCounterOp().getIncrement();
+            } else if (datatype == DtFetchResp.DataType.SET && op.hasSetOp()) {
+                updated = applySet(castSet(current), op.getSetOp());
+            } else if (datatype == DtFetchResp.DataType.MAP && op.hasMapOp()) {
+                updated = applyMap(castMap(current), op.getMapOp());
+            } else {
+                return Collections.singletonList(error("Operation type does not match " + datatype));
+            }
+            datatypes.put(id, updated);
+        }
+
+        DtUpdateResp.Builder resp = DtUpdateResp.newBuilder().setContext(nextVClock());
+        if (!req.hasKey()) {
+            resp.setKey(key);
+        }
+        if (req.getReturnBody()) {
+            DtValue value = toDtValue(updated);
+            if (value.hasCounterValue()) {
+                resp.setCounterValue(value.getCounterValue());
+            }
+            resp.addAllSetValue(value.getSetValueList()).addAllMapValue(value.getMapValueList());
+        }
+        return reply(RiakMessageCodes.MSG_DtUpdateResp, resp.build().toByteArray());
+    }
+
+    // Values are copied on write so they can be read outside the lock
+    private static Set<ByteString> applySet(Set<ByteString> current, SetOp op) {
+        Set<ByteString> set = new TreeSet<>(FakeRiakServer::compareBytes);
+        if (current != null) {
+            set.addAll(current);
+        }
+        set.addAll(op.getAddsList());
+        set.removeAll(op.getRemovesList());
+        return set;
+    }
+
+    private static Map<MapField, Object> applyMap(Map<MapField, Object> current, MapOp op) {
+        Map<MapField, Object> map = new TreeMap<>(Comparator
+                .comparing((MapField f) -> f.getName(), FakeRiakServer::compareBytes)
+                .thenComparing(MapField::getType));
+        if (current != null) {
+            map.putAll(current);
+        }
+        for (MapField removed : op.getRemovesList()) {
+            map.remove(removed);
+        }
+        for (MapUpdate update : op.getUpdatesList()) {
+            MapField field = update.getField();
+            Object value = map.get(field);
+            switch (field.getType()) {
+                case COUNTER:
+                    map.put(field, (value == null ? 0L : (Long) value) + update.getCounterOp().getIncrement());
+                    break;
+                case SET:
+                    map.put(field, applySet(castSet(value), update.getSetOp()));
+                    break;
+                case REGISTER:
+                    map.put(field, update.getRegisterOp());
+                    break;
+                case FLAG:
+                    map.put(field, update.getFlagOp() == MapUpdate.FlagOp.ENABLE);
+                    break;
+                case MAP:
+                    map.put(field, applyMap(castMap(value), update.getMapOp()));
+                    break;
+            }
+        }
+        return map;
+    }
+
+    private static DtValue toDtValue(Object value) {
+        DtValue.Builder dt = DtValue.newBuilder();
+        if (value instanceof Long) {
+            dt.setCounterValue((Long) value);
+        } else if (value instanceof Set) {
+            dt.addAllSetValue(castSet(value));
+        } else {
+            dt.addAllMapValue(toMapEntries(castMap(value)));
+        }
+        return dt.build();
+    }
+
+    private static List<MapEntry> toMapEntries(Map<MapField, Object> map) {
+        List<MapEntry> entries = new ArrayList<>(map.size());
+        for (Map.Entry<MapField, Object> field : map.entrySet()) {
+            MapEntry.Builder entry = MapEntry.newBuilder().setField(field.getKey());
+            Object value = field.getValue();
+            switch (field.getKey().getType()) {
+                case COUNTER:
+                    entry.setCounterValue((Long) value);
+                    break;
+                case SET:
+                    entry.addAllSetValue(castSet(value));
+                    break;
+                case REGISTER:
+                    entry.setRegisterValue((ByteString) value);
+                    break;
+                case FLAG:
+                    entry.setFlagValue((Boolean) value);
+                    break;
+                case MAP:
+                    entry.addAllMapValue(toMapEntries(castMap(value)));
+                    break;
+            }
+            entries.add(entry.build());
+        }
+        return entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<ByteString> castSet(Object value) {
+        return (Set<ByteString>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<MapField, Object> castMap(Object value) {
+        return (Map<MapField, Object>) value;
+    }
+
+    private boolean allowsSiblings(ByteString type) {
+        Boolean configured = allowMult.get(type);
+        return configured != null ? configured : !type.equals(DEFAULT_TYPE);
+    }
+
+    private static List<ByteString> key(ByteString type, ByteString bucket, ByteString key) {
+        return Arrays.asList(type == null ? DEFAULT_TYPE : type, bucket, key);
+    }
+
+    private ByteString nextVClock() {
+        return ByteString.copyFrom(ByteBuffer.allocate(8).putLong(clock.incrementAndGet()).array());
+    }
+
+    private static RpbContent stamp(RpbContent content) {
+        long now = System.currentTimeMillis();
+        return content.toBuilder()
+                .setVtag(ByteString.copyFromUtf8(Long.toString(now, 36) + Long.toString(System.nanoTime(), 36)))
+                .setLastMod((int) (now / 1000))
+                .setLastModUsecs((int) (now % 1000) * 1000)
+                .build();
+    }
+
+    private static RpbContent withoutValue(RpbContent content) {
+        return content.toBuilder().setValue(ByteString.EMPTY).build();
+    }
+
+    private static int compareNumeric(ByteString a, ByteString b) {
+        return Long.compare(Long.parseLong(a.toStringUtf8()), Long.parseLong(b.toStringUtf8()));
+    }
+
+    private static int compareBytes(ByteString a, ByteString b) {
+        int n = Math.min(a.size(), b.size());
+        for (int i = 0; i < n; i++) {
+            int cmp = (a.byteAt(i) & 0xff) - (b.byteAt(i) & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.size() - b.size();
+    }
+
+    private static List<Reply> reply(byte code, byte[] body) {
+        return Collections.singletonList(new Reply(code, body));
+    }
+
+    private static Reply error(String message) {
+        RpbErrorResp resp = RpbErrorResp.newBuilder()
+                .setErrmsg(ByteString.copyFromUtf8(message))
+                .setErrcode(0)
+                .build();
+        return new Reply(RiakMessageCodes.MSG_ErrorResp, resp.toByteArray());
+    }
+
+    private static final class StoredObject {
+        final ByteString vclock;
+        final List<RpbContent> siblings;
+
+        StoredObject(ByteString vclock, List<RpbContent> siblings) {
+            this.vclock = vclock;
+            this.siblings = siblings;
+        }
+    }
+
+    private static final class Reply {
+        final byte code;
+        final RpbIndexResp.Builder message;
+        private byte[] body;
+
+        Reply(byte code, byte[] body) {
+            this.code = code;
+            this.message = null;
+            this.body = body;
+        }
+
+        // Index responses are finished (continuation, done) after they've been chunked
+        Reply(byte code, RpbIndexResp.Builder message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        byte[] body() {
+            if (body == null) {
+                body = message.build().toByteArray();
+            }
+            return body;
+        }
+    }
+}
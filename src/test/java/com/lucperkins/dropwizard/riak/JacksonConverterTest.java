@@ -0,0 +1,80 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.api.cap.BasicVClock;
+import com.basho.riak.client.api.convert.Converter.OrmExtracted;
+import com.basho.riak.client.api.convert.JSONConverter;
+import com.basho.riak.client.core.query.RiakObject;
+import com.basho.riak.client.core.util.BinaryValue;
+import com.lucperkins.dropwizard.riak.dao.JacksonConverter;
+import com.lucperkins.dropwizard.riak.dao.ValueCompression;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class JacksonConverterTest {
+    private final Person luc = new Person("Luc", 32, hobbies());
+
+    private static Set<String> hobbies() {
+        Set<String> hobbies = new HashSet<>();
+        hobbies.add("computering");
+        hobbies.add("guitar");
+        return hobbies;
+    }
+
+    @Test
+    public void testSmileRoundTrip() throws Exception {
+        assertRoundTrip(JacksonConverter.smile(Person.class));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        assertRoundTrip(JacksonConverter.smile(Person.class).withCompression(ValueCompression.LZ4));
+        assertRoundTrip(JacksonConverter.json(Person.class).withCompression(ValueCompression.SNAPPY));
+    }
+
+    @Test
+    public void testContentType() {
+        assertEquals(JacksonConverter.smile(Person.class).getContentType(), "application/x-jackson-smile");
+        assertEquals(JacksonConverter.smile(Person.class).withCompression(ValueCompression.LZ4).getContentType(),
+                "application/x-jackson-smile; compression=lz4");
+    }
+
+    @Test
+    public void testReadsLegacyJson() throws Exception {
+        byte[] json = JSONConverter.getObjectMapper().writeValueAsBytes(luc);
+        Person person = JacksonConverter.smile(Person.class).toDomain(BinaryValue.create(json), "application/json");
+        assertEquals(person.getName(), luc.getName());
+        assertEquals(person.getHobbies(), luc.getHobbies());
+    }
+
+    @Test
+    public void testLocationAndVClockRoundTrip() throws Exception {
+        JacksonConverter<Person> converter = JacksonConverter.smile(Person.class);
+        RiakObject encoded = converter.fromDomain(luc, null, null).getRiakObject()
+                .setVClock(new BasicVClock(new byte[] { 1, 2, 3 }));
+
+        Person person = converter.toDomain(encoded, luc.getLocation());
+        assertEquals(person.getLocation(), luc.getLocation());
+        assertEquals(person.getBucketType(), luc.getBucketType());
+
+        OrmExtracted extracted = converter.fromDomain(person, null, null);
+        assertEquals(extracted.getNamespace(), luc.getLocation().getNamespace());
+        assertEquals(extracted.getKey(), BinaryValue.create(luc.getKey()));
+        assertArrayEquals(extracted.getRiakObject().getVClock().getBytes(), new byte[] { 1, 2, 3 });
+    }
+
+    private void assertRoundTrip(JacksonConverter<Person> converter) throws Exception {
+        RiakObject encoded = converter.fromDomain(luc, null, null).getRiakObject();
+        assertEquals(encoded.getContentType(), converter.getContentType());
+
+        Person person = JacksonConverter.json(Person.class).toDomain(encoded, luc.getLocation());
+        assertEquals(person.getName(), luc.getName());
+        assertEquals(person.getKey(), luc.getKey());
+        assertEquals(person.getAge(), luc.getAge());
+        assertEquals(person.getHobbies(), luc.getHobbies());
+    }
+}
@@ -0,0 +1,102 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.lucperkins.dropwizard.riak.dao.RiakDAO;
+import com.lucperkins.dropwizard.riak.operations.LatencyAwareNodeManager;
+import com.lucperkins.dropwizard.riak.operations.RiakClusterManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyAwareNodeManagerTest {
+    private FakeRiakServer fast;
+    private FakeRiakServer slow;
+    private LatencyAwareNodeManager nodeManager;
+    private RiakCluster cluster;
+    private RiakDAO<Person> riak;
+
+    @Before
+    public void setUp() throws IOException {
+        fast = new FakeRiakServer().start();
+        slow = new FakeRiakServer().start();
+        nodeManager = new LatencyAwareNodeManager()
+                .withDecay(100, TimeUnit.MILLISECONDS)
+                .withEjection(0.5, 5, 1, TimeUnit.MINUTES);
+        cluster = RiakClusterManager.buildCluster(
+                Arrays.asList(fast.getHostAndPort(), slow.getHostAndPort()), nodeManager);
+        cluster.start();
+        riak = new RiakDAO<>(new RiakClient(cluster), Person.class);
+    }
+
+    @Test
+    public void testPrefersFasterNode() throws RiakException {
+        slow.withLatency(20, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            riak.found(RiakDAO.makeLocation("people", "luc-" + i));
+        }
+        assertTrue(fast.getRequestCount() > 3 * slow.getRequestCount());
+        assertTrue(nodeManager.getLatency(node(slow)) > nodeManager.getLatency(node(fast)));
+    }
+
+    @Test
+    public void testEjectsFailingNode() throws RiakException {
+        slow.withErrorRate(1.0);
+        for (int i = 0; i < 30; i++) {
+            // The cluster retries failed attempts, which go to the other node
+            riak.found(RiakDAO.makeLocation("people", "luc-" + i));
+        }
+        assertTrue(nodeManager.isEjected(node(slow)));
+        assertFalse(nodeManager.isEjected(node(fast)));
+
+        long failed = slow.getRequestCount();
+        for (int i = 0; i < 30; i++) {
+            riak.found(RiakDAO.makeLocation("people", "cindy-" + i));
+        }
+        assertEquals(slow.getRequestCount(), failed);
+    }
+
+    @Test
+    public void testAvoidsHungNode() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            riak.found(RiakDAO.makeLocation("people", "luc-" + i));
+        }
+
+        slow.withLatency(1, TimeUnit.MINUTES);
+        long before = slow.getRequestCount();
+        for (int i = 0; i < 200; i++) {
+            riak.foundAsync(RiakDAO.makeLocation("people", "cindy-" + i));
+            Thread.sleep(5);
+        }
+        // Its latency has long decayed, but its attempts are still outstanding
+        assertTrue(slow.getRequestCount() - before < 5);
+    }
+
+    private RiakNode node(FakeRiakServer server) {
+        for (RiakNode node : cluster.getNodes()) {
+            if (node.getPort() == server.getPort()) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("No node for port " + server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // The cluster's shutdown waits for operations in flight, such as
+        // those sent to a hung node, so hang up on them first
+        fast.close();
+        slow.close();
+        cluster.shutdown().get();
+    }
+}
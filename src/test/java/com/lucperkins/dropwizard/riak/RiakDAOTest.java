@@ -2,9 +2,32 @@ package com.lucperkins.dropwizard.riak;
 
 import com.basho.riak.client.api.RiakClient;
 import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.api.cap.Quorum;
+import com.basho.riak.client.api.commands.kv.FetchValue;
+import com.basho.riak.client.api.convert.ConversionException;
+import com.basho.riak.client.api.convert.Converter;
+import com.basho.riak.client.api.convert.ConverterFactory;
 import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.Namespace;
+import com.basho.riak.client.core.util.BinaryValue;
+import com.codahale.metrics.MetricRegistry;
+import com.lucperkins.dropwizard.riak.dao.BulkWriteReport;
+import com.lucperkins.dropwizard.riak.dao.CallRejectedException;
+import com.lucperkins.dropwizard.riak.dao.CircuitBreakers;
+import com.lucperkins.dropwizard.riak.dao.JacksonConverter;
+import com.lucperkins.dropwizard.riak.dao.RiakCache;
+import com.lucperkins.dropwizard.riak.dao.MultiFetchResult;
 import com.lucperkins.dropwizard.riak.dao.RiakDAO;
-import com.lucperkins.dropwizard.riak.operations.HostAndPort;
+import com.lucperkins.dropwizard.riak.dao.RiakIndexEntry;
+import com.lucperkins.dropwizard.riak.dao.RiakIndexPage;
+import com.lucperkins.dropwizard.riak.dao.RiakIndexQuery;
+import com.lucperkins.dropwizard.riak.dao.RiakOptions;
+import com.lucperkins.dropwizard.riak.dao.RetryPolicy;
+import com.lucperkins.dropwizard.riak.dao.RiakBulkWriter;
+import com.lucperkins.dropwizard.riak.dao.SiblingResolvers;
+import com.lucperkins.dropwizard.riak.dao.StoreResult;
 import com.lucperkins.dropwizard.riak.operations.RiakClusterManager;
 import org.junit.After;
 import org.junit.Before;
@@ -12,38 +35,39 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
 public class RiakDAOTest {
+    private FakeRiakServer server;
+    private RiakCluster cluster;
+    private RiakClient client;
     private RiakDAO<Person> riak;
     private Person luc;
     private Person cindy;
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
     @Before
-    public void setUp() throws UnknownHostException {
-        String HOST = "127.0.0.1";
-        List<HostAndPort> nodes = new LinkedList<>();
-
-        HostAndPort node1 = new HostAndPort(HOST, 10017);
-        nodes.add(node1);
-        HostAndPort node2 = new HostAndPort(HOST, 10027);
-        nodes.add(node2);
-        HostAndPort node3 = new HostAndPort(HOST, 10037);
-        nodes.add(node3);
-
-        RiakCluster cluster = RiakClusterManager.buildCluster(nodes);
+    public void setUp() throws IOException {
+        server = new FakeRiakServer().start();
+        cluster = server.buildCluster();
         RiakClusterManager manager = new RiakClusterManager(cluster);
 
-        RiakClient client = new RiakClient(cluster);
+        client = new RiakClient(cluster);
         manager.registerConflictResolver(Person.class, new Person.Resolver());
         cluster.start();
 
@@ -67,6 +91,19 @@ public class RiakDAOTest {
         assertEquals(fetchedPerson.getHobbies(), luc.getHobbies());
     }
 
+    @Test
+    public void testConverterIsPerDAO() throws Exception {
+        JacksonConverter<Person> smile = JacksonConverter.smile(Person.class);
+        RiakDAO<Person> converting = new RiakDAO<>(client, Person.class).withConverter(smile);
+        assertTrue(converting.store(luc));
+        converting.update(luc.getLocation(), new Person.AgeByOneYear());
+
+        FetchValue.Response raw = client.execute(new FetchValue.Builder(luc.getLocation()).build());
+        assertEquals(raw.getValues().get(0).getContentType(), smile.getContentType());
+        assertEquals(converting.fetch(luc.getLocation()).getAge(), luc.getAge() + 1);
+        assertNotSame(ConverterFactory.getInstance().getConverter(Person.class), smile);
+    }
+
     @Test
     public void testFailedGet() throws RiakException {
         thrown.expect(RiakException.class);
@@ -94,7 +131,541 @@ public class RiakDAOTest {
         assertEquals(fetchedPerson.getAge(), cindy.getAge() + 1);
     }
 
+    @Test
+    public void testUpdateWithSingleConnection() throws Exception {
+        // The update's store needs the connection its fetch is still holding
+        // while the fetch's listener runs, so chaining it there would hang
+        RiakCluster single = server.buildCluster(new RiakNode.Builder()
+                .withMinConnections(1)
+                .withMaxConnections(1)
+                .withBlockOnMaxConnections(true));
+        single.start();
+        try {
+            RiakDAO<Person> dao = new RiakDAO<>(new RiakClient(single), Person.class);
+            dao.store(luc);
+            assertTrue(dao.updateAsync(luc.getLocation(), new Person.AgeByOneYear()).get(5, TimeUnit.SECONDS));
+            assertEquals(dao.fetch(luc.getLocation()).getAge(), luc.getAge() + 1);
+        } finally {
+            single.shutdown().get();
+        }
+    }
+
+    @Test
+    public void testStoreIfNotModified() throws RiakException {
+        MetricRegistry metrics = new MetricRegistry();
+        riak.withMetrics(metrics);
+        riak.store(luc);
+        Person first = riak.fetch(luc.getLocation());
+        Person stale = riak.fetch(luc.getLocation());
+
+        first.setAge(33);
+        assertEquals(riak.storeIfNotModified(first), StoreResult.STORED);
+        first.setAge(34);
+        assertEquals(riak.storeIfNotModified(first), StoreResult.STORED);
+
+        stale.setAge(40);
+        assertEquals(riak.storeIfNotModified(stale), StoreResult.CONFLICT);
+        assertEquals(riak.fetch(luc.getLocation()).getAge(), 34);
+        assertEquals(metrics.counter(MetricRegistry.name(RiakDAO.class, "Person", "store-conflicts")).getCount(), 1);
+    }
+
+    @Test
+    public void testStoreIfAbsent() throws RiakException {
+        assertFalse(riak.found(luc.getLocation()));
+        assertEquals(riak.storeIfAbsent(luc), StoreResult.STORED);
+        assertTrue(riak.found(luc.getLocation()));
+
+        Person impostor = new Person("Luc", 99, new HashSet<>());
+        assertEquals(riak.storeIfAbsent(impostor), StoreResult.CONFLICT);
+        assertEquals(riak.fetch(luc.getLocation()).getAge(), 32);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStoreIfNotModifiedWithoutVClock() throws RiakException {
+        riak.storeIfNotModified(luc);
+    }
+
+    @Test
+    public void testStoreAndFetchAsync() throws Exception {
+        assertTrue(riak.storeAsync(luc).get());
+        Person fetchedPerson = riak.fetchAsync(luc.getLocation()).get();
+        assertNotNull(fetchedPerson);
+        assertEquals(fetchedPerson.getName(), luc.getName());
+        assertEquals(fetchedPerson.getAge(), luc.getAge());
+    }
+
+    @Test
+    public void testFetchAll() throws RiakException {
+        riak.store(luc);
+        Location missing = RiakDAO.makeLocation("whatevs", "whatevs");
+        MultiFetchResult<Person> result = riak.fetchAll(Arrays.asList(luc.getLocation(), missing));
+        assertEquals(result.getValues().get(luc.getLocation()).getName(), luc.getName());
+        assertTrue(result.getNotFound().contains(missing));
+        assertFalse(result.hasFailures());
+    }
+
+    @Test
+    public void testFetchAllUsesCache() throws RiakException {
+        RiakDAO<Person> cached = new RiakDAO<>(client, Person.class)
+                .withCache(new RiakCache<>(100, 1, TimeUnit.MINUTES));
+        cached.store(luc);
+        cached.fetch(luc.getLocation());
+
+        server.withErrorRate(1.0);
+        MultiFetchResult<Person> result = cached.fetchAll(Arrays.asList(luc.getLocation()));
+        assertEquals(result.getValues().get(luc.getLocation()).getName(), luc.getName());
+    }
+
+    @Test
+    public void testFetchAllWithRejectedCalls() throws Exception {
+        CircuitBreakers breakers = new CircuitBreakers().withWindow(1, 1);
+        riak.withCircuitBreakers(breakers);
+        server.withErrorRate(1.0);
+        try {
+            riak.fetch(luc.getLocation());
+            fail();
+        } catch (RiakException e) {
+            // Opens the breaker
+        }
+
+        // Every fetch is rejected straight away, which mustn't recurse once per key
+        List<Location> locs = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            locs.add(new Location(luc.getLocation().getNamespace(), "key-" + i));
+        }
+        MultiFetchResult<Person> result = riak.fetchAllAsync(locs, 1).get(10, TimeUnit.SECONDS);
+        assertEquals(result.getFailures().size(), locs.size());
+        RiakException failure = result.getFailures().values().iterator().next();
+        assertTrue(failure.toString(), failure instanceof CallRejectedException);
+    }
+
+    @Test
+    public void testCachedFetch() throws RiakException {
+        MetricRegistry metrics = new MetricRegistry();
+        RiakCache<Person> cache = new RiakCache<Person>(100, 1, TimeUnit.MINUTES)
+                .withMetrics(metrics, "people");
+        RiakDAO<Person> cached = new RiakDAO<>(client, Person.class).withCache(cache);
+
+        cached.store(luc);
+        cached.fetch(luc.getLocation());
+        cached.fetch(luc.getLocation());
+        assertEquals(metrics.counter(MetricRegistry.name(RiakCache.class, "people", "misses")).getCount(), 1);
+        assertEquals(metrics.counter(MetricRegistry.name(RiakCache.class, "people", "hits")).getCount(), 1);
+
+        cached.delete(luc);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testInvalidationDuringFetchIsNotUndone() throws Exception {
+        RiakCache<Person> cache = new RiakCache<>(100, 1, TimeUnit.MINUTES);
+        RiakDAO<Person> cached = new RiakDAO<>(client, Person.class).withCache(cache);
+        cached.store(luc);
+        server.withLatency(200, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Person> fetched = cached.fetchAsync(luc.getLocation());
+        Thread.sleep(50);
+        cache.invalidate(luc.getLocation());
+        fetched.get(5, TimeUnit.SECONDS);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testCallOptionsBypassCache() throws RiakException {
+        RiakCache<Person> cache = new RiakCache<>(100, 1, TimeUnit.MINUTES);
+        RiakDAO<Person> cached = new RiakDAO<>(client, Person.class).withCache(cache);
+        cached.store(luc);
+        cached.fetch(luc.getLocation());
+
+        long requests = server.getRequestCount();
+        cached.fetch(luc.getLocation());
+        assertEquals(server.getRequestCount(), requests);
+        cached.fetch(luc.getLocation(), new RiakOptions().withR(Quorum.allQuorum()));
+        assertEquals(server.getRequestCount(), requests + 1);
+    }
+
+    @Test
+    public void testSingleFlightFetch() throws Exception {
+        RiakDAO<Person> coalescing = new RiakDAO<>(client, Person.class).withSingleFlight(true);
+        coalescing.store(luc);
+        server.withLatency(20, TimeUnit.MILLISECONDS);
+        CompletableFuture<Person> first = coalescing.fetchAsync(luc.getLocation());
+        CompletableFuture<Person> second = coalescing.fetchAsync(luc.getLocation());
+        assertSame(first.get(), second.get());
+    }
+
+    @Test
+    public void testSingleFlightSkippedForCallOptions() throws Exception {
+        RiakDAO<Person> coalescing = new RiakDAO<>(client, Person.class).withSingleFlight(true);
+        coalescing.store(luc);
+        server.withLatency(20, TimeUnit.MILLISECONDS);
+        long requests = server.getRequestCount();
+        CompletableFuture<Person> first = coalescing.fetchAsync(luc.getLocation());
+        CompletableFuture<Person> strict = coalescing.fetchAsync(luc.getLocation(),
+                new RiakOptions().withR(Quorum.allQuorum()));
+        assertNotSame(first.get(), strict.get());
+        assertEquals(server.getRequestCount(), requests + 2);
+    }
+
+    @Test
+    public void testMetrics() throws RiakException {
+        MetricRegistry metrics = new MetricRegistry();
+        RiakDAO<Person> instrumented = new RiakDAO<>(client, Person.class).withMetrics(metrics);
+
+        instrumented.store(luc);
+        instrumented.fetch(luc.getLocation());
+        assertEquals(metrics.timer(MetricRegistry.name(RiakDAO.class, "Person", "store")).getCount(), 1);
+        assertEquals(metrics.timer(MetricRegistry.name(RiakDAO.class, "Person", "fetch")).getCount(), 1);
+        assertEquals(metrics.histogram(MetricRegistry.name(RiakDAO.class, "Person", "siblings")).getCount(), 1);
+    }
+
+    @Test
+    public void testBulkWriteCountsEveryWrite() throws RiakException {
+        server.withErrorRate(1.0);
+        // The same key twice: two failed writes, one failed location
+        Person other = new Person("Cindy", 75, new HashSet<>());
+        BulkWriteReport report = new RiakBulkWriter(riak, 2, 10)
+                .storeAll(Arrays.asList(luc, luc, other).stream());
+        assertEquals(report.getAttempted(), 3);
+        assertEquals(report.getFailed(), 3);
+        assertEquals(report.getSucceeded(), 0);
+        assertEquals(report.getFailures().size(), 2);
+    }
+
+    @Test
+    public void testBulkWriteCountsConversionFailures() throws RiakException {
+        RiakDAO<Person> unconvertible = new RiakDAO<>(client, Person.class)
+                .withConverter(new Converter<Person>(Person.class) {
+                    @Override
+                    public Person toDomain(BinaryValue value, String contentType) {
+                        throw new ConversionException("Not readable");
+                    }
+
+                    @Override
+                    public ContentAndType fromDomain(Person person) {
+                        throw new ConversionException("Not writable");
+                    }
+                });
+        List<BulkWriteReport> batches = new ArrayList<>();
+        BulkWriteReport report = new RiakBulkWriter(unconvertible, 1, 1)
+                .withBatchListener(batches::add)
+                .storeAll(Arrays.asList(luc, new Person("Cindy", 75, new HashSet<>())).stream());
+        assertEquals(report.getAttempted(), 2);
+        assertEquals(report.getFailed(), 2);
+        assertEquals(report.getFailures().size(), 2);
+        assertEquals(batches.size(), 2);
+    }
+
+    @Test
+    public void testNotFoundIsNotAnError() {
+        MetricRegistry metrics = new MetricRegistry();
+        RiakDAO<Person> instrumented = new RiakDAO<>(client, Person.class).withMetrics(metrics);
+        try {
+            instrumented.fetch(luc.getLocation());
+            fail();
+        } catch (RiakException e) {
+            // Not stored
+        }
+        assertEquals(metrics.counter(MetricRegistry.name(RiakDAO.class, "Person", "not-found")).getCount(), 1);
+        assertEquals(metrics.counter(MetricRegistry.name(RiakDAO.class, "Person", "fetch", "errors")).getCount(), 0);
+    }
+
+    @Test
+    public void testSiblings() throws RiakException {
+        MetricRegistry metrics = new MetricRegistry();
+        RiakDAO<Person> instrumented = new RiakDAO<>(client, Person.class).withMetrics(metrics);
+
+        instrumented.store(luc);
+        instrumented.store(new Person("Luc", 33, luc.getHobbies()));
+        assertEquals(instrumented.fetch(luc.getLocation()).getAge(), luc.getAge());
+        assertEquals(metrics.histogram(MetricRegistry.name(RiakDAO.class, "Person", "siblings"))
+                .getSnapshot().getMax(), 2);
+    }
+
+    @Test
+    public void testSiblingResolvers() throws RiakException {
+        MetricRegistry metrics = new MetricRegistry();
+        RiakDAO<Person> oldest = new RiakDAO<>(client, Person.class)
+                .withResolver(SiblingResolvers.lastWriteWins(Person::getAge))
+                .withResolver("people", "siblings", SiblingResolvers.merge((a, b) -> a.getAge() < b.getAge() ? a : b));
+        RiakDAO<Person> newest = new RiakDAO<>(client, Person.class)
+                .withResolver(SiblingResolvers.lastWriteWins(Person::getAge))
+                .withMetrics(metrics);
+
+        newest.store(luc);
+        newest.store(new Person("Luc", 40, luc.getHobbies()));
+        assertEquals(oldest.fetch(luc.getLocation()).getAge(), 32);
+        assertEquals(newest.fetch(luc.getLocation()).getAge(), 40);
+        assertEquals(metrics.timer(MetricRegistry.name(RiakDAO.class, "Person", "sibling-resolution")).getCount(), 1);
+
+        // The update is written with the fetched vclock, so it replaces both siblings
+        assertTrue(newest.update(luc.getLocation(), new Person.AgeByOneYear()));
+        assertEquals(oldest.fetch(luc.getLocation()).getAge(), 41);
+    }
+
+    @Test
+    public void testUnionResolver() throws RiakException {
+        RiakDAO<Person> merging = new RiakDAO<>(client, Person.class).withResolver(SiblingResolvers.union(
+                Person::getHobbies, (person, hobbies) -> new Person(person.getName(), person.getAge(), hobbies)));
+
+        merging.store(new Person("Cindy", 75, new HashSet<>(Arrays.asList("cycling"))));
+        merging.store(new Person("Cindy", 75, new HashSet<>(Arrays.asList("philosophy"))));
+        assertEquals(merging.fetch("people", "cindy", "siblings").getHobbies(),
+                new HashSet<>(Arrays.asList("cycling", "philosophy")));
+    }
+
+    @Test
+    public void testInjectedFailure() throws RiakException {
+        riak.store(luc);
+        server.withErrorRate(1.0);
+
+        thrown.expect(RiakException.class);
+        riak.fetch(luc.getLocation());
+    }
+
+    @Test
+    public void testInjectedLatency() throws RiakException {
+        riak.store(luc);
+        server.withLatency(50, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        riak.fetch(luc.getLocation());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        CircuitBreakers breakers = new CircuitBreakers()
+                .withWindow(4, 4)
+                .withOpenDuration(100, TimeUnit.MILLISECONDS)
+                .withHalfOpenCalls(1);
+        riak.withCircuitBreakers(breakers);
+        Namespace ns = luc.getLocation().getNamespace();
+        riak.store(luc);
+
+        server.withErrorRate(1.0);
+        for (int i = 0; i < 4; i++) {
+            try {
+                riak.fetch(luc.getLocation());
+                fail();
+            } catch (CallRejectedException e) {
+                fail();
+            } catch (RiakException e) {
+                // Sent to Riak and failed
+            }
+        }
+        assertEquals(breakers.getState(ns, CircuitBreakers.OperationClass.READ), CircuitBreakers.State.OPEN);
+        assertEquals(breakers.getState(ns, CircuitBreakers.OperationClass.WRITE), CircuitBreakers.State.CLOSED);
+
+        long requests = server.getRequestCount();
+        try {
+            riak.fetch(luc.getLocation());
+            fail();
+        } catch (CallRejectedException e) {
+            assertTrue(e.getRetryAfterMillis() > 0);
+        }
+        assertEquals(server.getRequestCount(), requests);
+
+        server.withErrorRate(0);
+        Thread.sleep(150);
+        assertEquals(breakers.getState(ns, CircuitBreakers.OperationClass.READ), CircuitBreakers.State.HALF_OPEN);
+        assertNotNull(riak.fetch(luc.getLocation()));
+        assertEquals(breakers.getState(ns, CircuitBreakers.OperationClass.READ), CircuitBreakers.State.CLOSED);
+    }
+
+    @Test
+    public void testNotFoundLeavesBreakerClosed() throws RiakException {
+        CircuitBreakers breakers = new CircuitBreakers().withWindow(4, 4);
+        riak.withCircuitBreakers(breakers);
+        Namespace ns = luc.getLocation().getNamespace();
+        riak.store(luc);
+
+        for (int i = 0; i < 10; i++) {
+            try {
+                riak.fetch(new Location(ns, "missing-" + i));
+                fail();
+            } catch (CallRejectedException e) {
+                fail();
+            } catch (RiakException e) {
+                // Not found
+            }
+            assertEquals(riak.storeIfAbsent(luc), StoreResult.CONFLICT);
+        }
+        assertEquals(breakers.getState(ns, CircuitBreakers.OperationClass.READ), CircuitBreakers.State.CLOSED);
+        assertEquals(breakers.getState(ns, CircuitBreakers.OperationClass.WRITE), CircuitBreakers.State.CLOSED);
+        assertNotNull(riak.fetch(luc.getLocation()));
+    }
+
+    @Test
+    public void testSlowCallsOpenBreaker() throws RiakException {
+        CircuitBreakers breakers = new CircuitBreakers()
+                .withWindow(2, 2)
+                .withSlowCallThreshold(0.5, 10, TimeUnit.MILLISECONDS);
+        riak.withCircuitBreakers(breakers);
+        riak.store(luc);
+
+        server.withLatency(30, TimeUnit.MILLISECONDS);
+        riak.fetch(luc.getLocation());
+        riak.fetch(luc.getLocation());
+        assertEquals(breakers.getState(luc.getLocation().getNamespace(), CircuitBreakers.OperationClass.READ),
+                CircuitBreakers.State.OPEN);
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        riak.withCircuitBreakers(new CircuitBreakers()
+                .withMaxConcurrentCalls(2)
+                .withMetrics(registry, "people"));
+        riak.store(luc);
+
+        server.withLatency(100, TimeUnit.MILLISECONDS);
+        CompletableFuture<Person> first = riak.fetchAsync(luc.getLocation());
+        CompletableFuture<Person> second = riak.fetchAsync(luc.getLocation());
+        CompletableFuture<Person> third = riak.fetchAsync(luc.getLocation());
+        assertTrue(third.isCompletedExceptionally());
+        assertNotNull(first.get());
+        assertNotNull(second.get());
+        Namespace ns = luc.getLocation().getNamespace();
+        assertEquals(registry.counter(MetricRegistry.name(CircuitBreakers.class, "people",
+                ns.getBucketTypeAsString(), ns.getBucketNameAsString(), "bulkhead-rejected")).getCount(), 1);
+        assertNotNull(riak.fetch(luc.getLocation()));
+    }
+
+    @Test
+    public void testRetryTransientFailure() throws RiakException {
+        MetricRegistry registry = new MetricRegistry();
+        riak.withRetryPolicy(retryPolicy().withMetrics(registry, "people"));
+        riak.store(luc);
+
+        // Fails all of the cluster's own attempts, so the DAO has to retry
+        server.failNext(3);
+        assertNotNull(riak.fetch(luc.getLocation()));
+        assertEquals(registry.counter(MetricRegistry.name(RetryPolicy.class, "people", "retries")).getCount(), 1);
+        assertEquals(registry.counter(MetricRegistry.name(RetryPolicy.class, "people", "recovered")).getCount(), 1);
+    }
+
+    @Test
+    public void testNoRetryForPermanentError() throws RiakException {
+        MetricRegistry registry = new MetricRegistry();
+        riak.withRetryPolicy(retryPolicy().withMetrics(registry, "people"));
+        riak.store(luc);
+
+        server.withErrorMessage("{n_val_violation,3}").failNext(3);
+        try {
+            riak.fetch(luc.getLocation());
+            fail();
+        } catch (RiakException e) {
+            assertEquals(registry.counter(MetricRegistry.name(RetryPolicy.class, "people", "retries")).getCount(), 0);
+        }
+    }
+
+    @Test
+    public void testNoRetryForPlainStore() throws RiakException {
+        riak.withRetryPolicy(retryPolicy());
+        server.failNext(3);
+        try {
+            riak.store(luc);
+            fail();
+        } catch (RiakException e) {
+            assertEquals(server.getRequestCount(), 3);
+        }
+    }
+
+    @Test
+    public void testRetryBudget() throws RiakException {
+        MetricRegistry registry = new MetricRegistry();
+        riak.withRetryPolicy(retryPolicy()
+                .withMaxAttempts(2)
+                .withBudget(0)
+                .withMetrics(registry, "people"));
+        riak.store(luc);
+
+        server.withErrorRate(1.0);
+        for (int i = 0; i < 12; i++) {
+            try {
+                riak.fetch(luc.getLocation());
+                fail();
+            } catch (RiakException e) {
+                // Expected
+            }
+        }
+        // The budget starts with ten retries and earns no more
+        assertEquals(registry.counter(MetricRegistry.name(RetryPolicy.class, "people", "retries")).getCount(), 10);
+        assertEquals(registry.counter(MetricRegistry.name(RetryPolicy.class, "people", "denied")).getCount(), 2);
+    }
+
+    @Test
+    public void testRetryDeadline() throws RiakException {
+        riak.withRetryPolicy(retryPolicy()
+                .withBackoff(100, 100, TimeUnit.MILLISECONDS)
+                .withDeadline(20, TimeUnit.MILLISECONDS));
+        riak.store(luc);
+
+        server.failNext(3);
+        thrown.expect(RiakException.class);
+        riak.fetch(luc.getLocation());
+    }
+
+    private RetryPolicy retryPolicy() {
+        return new RetryPolicy(scheduler).withBackoff(1, 10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testQueryIndex() throws RiakException {
+        RiakDAO<BlogPost> posts = storePosts();
+
+        List<String> byLuc = posts.queryIndex(RiakIndexQuery.match("author", "luc"), "posts")
+                .map(RiakIndexEntry::getKey)
+                .collect(Collectors.toList());
+        assertEquals(byLuc, Arrays.asList("post-0", "post-2", "post-4"));
+
+        List<RiakIndexEntry<Long>> recent = posts
+                .queryIndex(RiakIndexQuery.range("published", 2L, 4L).withReturnTerms(true).withPageSize(2), "posts")
+                .collect(Collectors.toList());
+        assertEquals(recent.size(), 3);
+        assertEquals(recent.get(0).getTerm(), Long.valueOf(2));
+        assertEquals(recent.get(2).getKey(), "post-4");
+    }
+
+    @Test
+    public void testQueryIndexPages() throws RiakException {
+        RiakDAO<BlogPost> posts = storePosts();
+        RiakIndexQuery<Long> query = RiakIndexQuery.range("published", 0L, 4L).withPageSize(3);
+
+        RiakIndexPage<Long> first = posts.queryIndexPage(query, "posts");
+        assertEquals(first.getEntries().size(), 3);
+        assertTrue(first.hasContinuation());
+
+        RiakIndexPage<Long> second = posts.queryIndexPage(query.withContinuation(first.getContinuation()), "posts");
+        assertEquals(second.getEntries().size(), 2);
+        assertFalse(second.hasContinuation());
+    }
+
+    @Test
+    public void testFetchByIndex() throws RiakException {
+        RiakDAO<BlogPost> posts = storePosts();
+        posts.delete("posts", "post-2");
+
+        List<BlogPost> byLuc = posts.fetchByIndex(RiakIndexQuery.match("author", "luc").withPageSize(1), "posts")
+                .collect(Collectors.toList());
+        assertEquals(byLuc.size(), 2);
+        assertEquals(byLuc.get(1).getTitle(), "Post 4");
+        assertEquals(byLuc.get(1).getPublished(), Long.valueOf(4));
+    }
+
+    private RiakDAO<BlogPost> storePosts() throws RiakException {
+        RiakDAO<BlogPost> posts = new RiakDAO<>(client, BlogPost.class);
+        for (int i = 0; i < 5; i++) {
+            posts.store(new BlogPost("post-" + i, "Post " + i, i % 2 == 0 ? "luc" : "cindy", i));
+        }
+        return posts;
+    }
+
     @After
-    public void tearDown() {
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        cluster.shutdown().get();
+        server.close();
     }
 }
@@ -0,0 +1,164 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.api.commands.datatypes.CounterUpdate;
+import com.basho.riak.client.api.commands.datatypes.FlagUpdate;
+import com.basho.riak.client.api.commands.datatypes.MapUpdate;
+import com.basho.riak.client.api.commands.datatypes.RegisterUpdate;
+import com.basho.riak.client.api.commands.datatypes.SetUpdate;
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.crdt.types.RiakMap;
+import com.basho.riak.client.core.util.BinaryValue;
+import com.lucperkins.dropwizard.riak.dao.CircuitBreakers;
+import com.lucperkins.dropwizard.riak.dao.RiakDAO;
+import com.lucperkins.dropwizard.riak.dao.RiakDataTypeDAO;
+import com.lucperkins.dropwizard.riak.dao.RiakDataTypeResourceDriver;
+import com.lucperkins.dropwizard.riak.dao.RiakOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RiakDataTypeDAOTest {
+    private FakeRiakServer server;
+    private RiakCluster cluster;
+    private RiakDataTypeDAO riak;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeRiakServer().start();
+        cluster = server.buildCluster();
+        cluster.start();
+        riak = new RiakDataTypeDAO(new RiakClient(cluster));
+    }
+
+    @Test
+    public void testCounter() throws RiakException {
+        Location loc = RiakDAO.makeLocation("likes", "post-1", "counters");
+        assertEquals(riak.fetchCounter(loc), 0);
+        assertEquals(riak.increment(loc, 5), 5);
+        assertEquals(riak.increment(loc, -2), 3);
+        assertEquals(riak.fetchCounter(loc), 3);
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws RiakException {
+        Location loc = RiakDAO.makeLocation("likes", "post-2", "counters");
+        List<CompletableFuture<Long>> increments = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            increments.add(riak.incrementAsync(loc, 1));
+        }
+        CompletableFuture.allOf(increments.toArray(new CompletableFuture[0])).join();
+        assertEquals(riak.fetchCounter(loc), 50);
+    }
+
+    @Test
+    public void testSet() throws RiakException {
+        Location loc = RiakDAO.makeLocation("tags", "post-1", "sets");
+        assertTrue(riak.fetchSet(loc).isEmpty());
+
+        riak.addToSet(loc, Arrays.asList("riak", "java", "dropwizard"));
+        riak.removeFromSet(loc, Collections.singletonList("java"));
+        assertEquals(riak.fetchSet(loc), new HashSet<>(Arrays.asList("riak", "dropwizard")));
+    }
+
+    @Test
+    public void testMap() throws RiakException {
+        Location loc = RiakDAO.makeLocation("profiles", "luc", "maps");
+        riak.updateMap(loc, new MapUpdate()
+                .update("name", new RegisterUpdate("Luc"))
+                .update("visits", new CounterUpdate(2))
+                .update("admin", new FlagUpdate(true))
+                .update("address", new MapUpdate().update("city", new RegisterUpdate("Portland"))));
+        riak.updateMap(loc, new MapUpdate()
+                .update("visits", new CounterUpdate(1))
+                .update("hobbies", new SetUpdate().add("guitar")));
+
+        RiakMap map = riak.fetchMap(loc);
+        assertEquals(map.getRegister("name").view().toStringUtf8(), "Luc");
+        assertEquals(map.getCounter("visits").view(), Long.valueOf(3));
+        assertTrue(map.getFlag("admin").view());
+        assertEquals(map.getMap("address").getRegister("city").view().toStringUtf8(), "Portland");
+        assertTrue(map.getSet("hobbies").contains("guitar"));
+
+        riak.updateMap(loc, new MapUpdate().removeFlag("admin"));
+        assertFalse(riak.fetchMap(loc).view().containsKey(BinaryValue.create("admin")));
+    }
+
+    @Test
+    public void testDriver() {
+        RiakDataTypeResourceDriver driver = new RiakDataTypeResourceDriver(riak);
+
+        Response res = driver.increment("likes", "post-3", "counters", 4);
+        assertEquals(res.getStatus(), 200);
+        assertEquals(res.getEntity(), 4L);
+        assertEquals(driver.getCounter("likes", "post-3", "counters"), 4);
+
+        assertEquals(driver.addToSet("tags", "post-3", "sets", Arrays.asList("a", "b")).getStatus(), 204);
+        assertEquals(driver.getSet("tags", "post-3", "sets"), new HashSet<>(Arrays.asList("a", "b")));
+
+        driver.updateMap("profiles", "cindy", "maps", new MapUpdate()
+                .update("name", new RegisterUpdate("Cindy"))
+                .update("hobbies", new SetUpdate().add("chess")));
+        Map<String, Object> json = driver.getMap("profiles", "cindy", "maps");
+        assertEquals(json.get("name_register"), "Cindy");
+        assertEquals(json.get("hobbies_set"), Collections.singletonList("chess"));
+    }
+
+    @Test
+    public void testDriverOpenCircuitReturns503() throws RiakException {
+        RiakDataTypeResourceDriver driver = new RiakDataTypeResourceDriver(riak)
+                .withCircuitBreakers(new CircuitBreakers()
+                        .withWindow(1, 1)
+                        .withOpenDuration(1, TimeUnit.MINUTES));
+        server.failNext(3);
+        try {
+            driver.increment("likes", "post-4", "counters", 1);
+            fail();
+        } catch (WebApplicationException e) {
+            assertEquals(e.getResponse().getStatus(), 400);
+        }
+
+        try {
+            driver.increment("likes", "post-4", "counters", 1);
+            fail();
+        } catch (WebApplicationException e) {
+            Response res = e.getResponse();
+            assertEquals(res.getStatus(), 503);
+            assertEquals(String.valueOf(res.getMetadata().getFirst("Retry-After")), "60");
+        }
+        // Reads have a breaker of their own
+        assertEquals(driver.getCounter("likes", "post-4", "counters"), 0);
+    }
+
+    @Test
+    public void testNullOptions() throws RiakException {
+        riak.withOptions(null);
+        assertEquals(riak.getOptions(), RiakOptions.DEFAULT);
+        assertEquals(riak.increment(RiakDAO.makeLocation("likes", "post-5", "counters"), 1), 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cluster.shutdown().get();
+        server.close();
+    }
+}
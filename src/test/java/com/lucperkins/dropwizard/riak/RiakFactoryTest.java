@@ -0,0 +1,45 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.lucperkins.dropwizard.riak.operations.RiakFactory;
+import io.dropwizard.util.Duration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RiakFactoryTest {
+    private final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+
+    @Test
+    public void testBindsYaml() throws Exception {
+        String yaml = "nodes:\n" +
+                "  - host: 127.0.0.1\n" +
+                "    port: 10017\n" +
+                "  - host: 127.0.0.1\n" +
+                "    port: 10027\n" +
+                "minConnections: 10\n" +
+                "maxConnections: 200\n" +
+                "idleTimeout: 2s\n" +
+                "connectionTimeout: 500ms\n" +
+                "executorThreads: 8\n";
+        RiakFactory factory = mapper.readValue(yaml, RiakFactory.class);
+
+        assertEquals(factory.getNodes().size(), 2);
+        assertEquals(factory.getNodes().get(1).port, 10027);
+        assertEquals(factory.getMinConnections(), 10);
+        assertEquals(factory.getMaxConnections(), 200);
+        assertEquals(factory.getIdleTimeout(), Duration.seconds(2));
+        assertEquals(factory.getConnectionTimeout(), Duration.milliseconds(500));
+        assertEquals(factory.getExecutorThreads(), 8);
+        assertFalse(factory.isBlockOnMaxConnections());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExecutorThreadsNeedEnvironment() throws Exception {
+        RiakFactory factory = mapper.readValue("nodes:\n  - host: 127.0.0.1\n    port: 10017\n" +
+                "executorThreads: 8\n", RiakFactory.class);
+        factory.build();
+    }
+}
@@ -0,0 +1,144 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.core.RiakCluster;
+import com.codahale.metrics.health.HealthCheck;
+import com.lucperkins.dropwizard.riak.operations.RiakClusterManager;
+import com.lucperkins.dropwizard.riak.operations.RiakHealthCheck;
+import com.lucperkins.dropwizard.riak.operations.RiakNodeProber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RiakHealthCheckTest {
+    private FakeRiakServer server;
+    private FakeRiakServer other;
+    private RiakCluster cluster;
+    private RiakNodeProber prober;
+    private RiakHealthCheck healthCheck;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeRiakServer().start();
+        other = new FakeRiakServer().start();
+        cluster = RiakClusterManager.buildCluster(Arrays.asList(server.getHostAndPort(), other.getHostAndPort()));
+        cluster.start();
+        prober = new RiakNodeProber(cluster)
+                .withInterval(20, TimeUnit.MILLISECONDS)
+                .withTimeout(500, TimeUnit.MILLISECONDS);
+        healthCheck = new RiakHealthCheck(prober, "up", "down");
+    }
+
+    @Test
+    public void testUnhealthyBeforeFirstProbe() {
+        HealthCheck.Result result = healthCheck.execute();
+        assertFalse(result.isHealthy());
+        assertTrue(result.getMessage().startsWith("down"));
+    }
+
+    @Test
+    public void testHealthy() throws InterruptedException {
+        prober.start();
+        HealthCheck.Result result = await(HealthCheck.Result::isHealthy);
+        assertTrue(result.getMessage().startsWith("up ("));
+        for (RiakNodeProber.NodeHealth node : prober.getNodes()) {
+            assertTrue(node.isUp());
+            assertEquals(node.getAvailability(), 1.0, 0.0);
+        }
+    }
+
+    @Test
+    public void testUnhealthyOnError() throws InterruptedException {
+        server.withErrorRate(1.0);
+        other.withErrorRate(1.0);
+        prober.start();
+        HealthCheck.Result result = await(r -> !r.isHealthy());
+        assertTrue(result.getMessage(), result.getMessage().startsWith("down ("));
+    }
+
+    @Test
+    public void testDegradedOnHungNode() throws InterruptedException {
+        other.withLatency(1, TimeUnit.MINUTES);
+        prober.start();
+        HealthCheck.Result result = await(r -> r.getMessage().contains("degraded"));
+        assertTrue(result.isHealthy());
+        assertTrue(result.getMessage().startsWith("up, degraded: 1 of 2 nodes down"));
+
+        // Served from the prober's state, not by waiting on the hung node
+        long start = System.nanoTime();
+        healthCheck.execute();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testOnePingOutstandingPerHungNode() throws InterruptedException {
+        other.withLatency(1, TimeUnit.MINUTES);
+        prober.withTimeout(20, TimeUnit.MILLISECONDS).start();
+        Thread.sleep(500);
+        assertEquals(other.getRequestCount(), 1);
+        RiakNodeProber.NodeHealth hung = prober.getNodes().get(1);
+        assertFalse(hung.isUp());
+        assertTrue(hung.getConsecutiveFailures() > 1);
+    }
+
+    @Test
+    public void testNoTrafficPerCheck() throws InterruptedException {
+        prober.withInterval(1, TimeUnit.HOURS).start();
+        await(HealthCheck.Result::isHealthy);
+        long requests = server.getRequestCount() + other.getRequestCount();
+        for (int i = 0; i < 100; i++) {
+            healthCheck.execute();
+        }
+        assertEquals(server.getRequestCount() + other.getRequestCount(), requests);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testClusterConstructorPingsPerCheck() {
+        RiakHealthCheck pinging = new RiakHealthCheck(cluster, "up", "down");
+        assertNull(pinging.getProber());
+        long requests = server.getRequestCount() + other.getRequestCount();
+        HealthCheck.Result result = pinging.execute();
+        assertTrue(result.isHealthy());
+        assertEquals(result.getMessage(), "up");
+        assertEquals(server.getRequestCount() + other.getRequestCount(), requests + 1);
+    }
+
+    /**
+     * Polls the health check until every node has been probed and the
+     * result matches {@code condition}.
+     */
+    private HealthCheck.Result await(Predicate<HealthCheck.Result> condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        HealthCheck.Result result = healthCheck.execute();
+        while (!(allProbed() && condition.test(result)) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            result = healthCheck.execute();
+        }
+        assertTrue(result.getMessage(), allProbed() && condition.test(result));
+        return result;
+    }
+
+    private boolean allProbed() {
+        return prober.getNodes().stream().allMatch(RiakNodeProber.NodeHealth::hasBeenProbed);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        prober.stop();
+        // The cluster's shutdown waits for operations in flight, such as
+        // pings to a hung node, so hang up on them first
+        server.close();
+        other.close();
+        cluster.shutdown().get();
+    }
+}
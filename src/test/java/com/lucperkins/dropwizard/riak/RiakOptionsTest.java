@@ -0,0 +1,35 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.api.cap.Quorum;
+import com.lucperkins.dropwizard.riak.dao.RiakOptions;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RiakOptionsTest {
+    @Test
+    public void testMergeOverridesOnlySetValues() {
+        RiakOptions defaults = new RiakOptions()
+                .withR(2)
+                .withW(Quorum.quorumQuorum())
+                .withTimeout(1, TimeUnit.SECONDS);
+        RiakOptions merged = defaults.merge(new RiakOptions().withR(1).withNotFoundOk(true));
+
+        assertEquals(merged.getR(), new Quorum(1));
+        assertEquals(merged.getW(), Quorum.quorumQuorum());
+        assertEquals(merged.getTimeout(), Integer.valueOf(1000));
+        assertTrue(merged.getNotFoundOk());
+        assertNull(merged.getPw());
+    }
+
+    @Test
+    public void testOptionsAreImmutable() {
+        RiakOptions base = new RiakOptions();
+        RiakOptions withR = base.withR(1);
+        assertNull(base.getR());
+        assertNotSame(base, withR);
+        assertSame(withR.merge(RiakOptions.DEFAULT), withR);
+    }
+}
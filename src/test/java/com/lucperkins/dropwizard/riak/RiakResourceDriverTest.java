@@ -3,9 +3,13 @@ package com.lucperkins.dropwizard.riak;
 import com.basho.riak.client.api.RiakClient;
 import com.basho.riak.client.api.RiakException;
 import com.basho.riak.client.core.RiakCluster;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lucperkins.dropwizard.riak.dao.CircuitBreakers;
 import com.lucperkins.dropwizard.riak.dao.RiakDAO;
+import com.lucperkins.dropwizard.riak.dao.RiakIndexQuery;
 import com.lucperkins.dropwizard.riak.dao.RiakResourceDriver;
-import com.lucperkins.dropwizard.riak.operations.HostAndPort;
 import com.lucperkins.dropwizard.riak.operations.RiakClusterManager;
 import org.junit.After;
 import org.junit.Before;
@@ -15,16 +19,24 @@ import org.junit.rules.ExpectedException;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
-import java.net.UnknownHostException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class RiakResourceDriverTest {
+    private FakeRiakServer server;
+    private RiakCluster cluster;
     private RiakClient client;
     private RiakResourceDriver<Person> driver;
     private Person luc;
@@ -34,18 +46,9 @@ public class RiakResourceDriverTest {
     public ExpectedException thrown = ExpectedException.none();
 
     @Before
-    public void setUp() throws RiakException, UnknownHostException {
-        String HOST = "127.0.0.1";
-        List<HostAndPort> nodes = new LinkedList<>();
-
-        HostAndPort node1 = new HostAndPort(HOST, 10017);
-        nodes.add(node1);
-        HostAndPort node2 = new HostAndPort(HOST, 10027);
-        nodes.add(node2);
-        HostAndPort node3 = new HostAndPort(HOST, 10037);
-        nodes.add(node3);
-
-        RiakCluster cluster = RiakClusterManager.buildCluster(nodes);
+    public void setUp() throws RiakException, IOException {
+        server = new FakeRiakServer().start();
+        cluster = server.buildCluster();
         RiakClusterManager manager = new RiakClusterManager(cluster);
         cluster.start();
 
@@ -85,12 +88,149 @@ public class RiakResourceDriverTest {
 
     @Test
     public void testPut() throws RiakException {
+        riak.store(luc);
         Response res = driver.put(luc.getLocation(), new Person.AgeByOneYear());
         assertEquals(res.getStatus(), 204);
     }
 
+    @Test
+    public void testConditionalPut() throws RiakException {
+        riak.store(luc);
+        Person first = riak.fetch(luc.getLocation());
+        Person stale = riak.fetch(luc.getLocation());
+        assertEquals(driver.put(first).getStatus(), 204);
+        assertEquals(driver.putAsync(stale).join().getStatus(), 412);
+    }
+
+    @Test
+    public void testConditionalPutWithIfMatch() throws RiakException {
+        riak.store(luc);
+        String etag = "\"" + driver.entityTag(riak.fetch(luc.getLocation())).getValue() + "\"";
+
+        Person fromBody = new Person("Luc", 33, luc.getHobbies());
+        assertEquals(driver.put(fromBody, etag).getStatus(), 204);
+        Person stale = new Person("Luc", 40, luc.getHobbies());
+        assertEquals(driver.putAsync(stale, etag).join().getStatus(), 412);
+        assertEquals(riak.fetch(luc.getLocation()).getAge(), 33);
+    }
+
+    @Test
+    public void testConditionalPutWithoutVClock() throws RiakException {
+        try {
+            driver.put(luc);
+            fail();
+        } catch (WebApplicationException e) {
+            assertEquals(e.getResponse().getStatus(), 428);
+        }
+
+        try {
+            driver.putAsync(luc).join();
+            fail();
+        } catch (CompletionException e) {
+            assertEquals(((WebApplicationException) e.getCause()).getResponse().getStatus(), 428);
+        }
+
+        try {
+            driver.put(luc, "\"not a vclock!\"");
+            fail();
+        } catch (WebApplicationException e) {
+            assertEquals(e.getResponse().getStatus(), 400);
+        }
+    }
+
+    @Test
+    public void testOpenCircuitReturns503() throws RiakException {
+        driver.withCircuitBreakers(new CircuitBreakers()
+                .withWindow(1, 1)
+                .withOpenDuration(1, TimeUnit.MINUTES));
+        riak.store(luc);
+        server.failNext(3);
+        try {
+            driver.get(luc.getLocation());
+            fail();
+        } catch (WebApplicationException e) {
+            assertEquals(e.getResponse().getStatus(), 404);
+        }
+
+        try {
+            driver.getAsync(luc.getLocation()).join();
+            fail();
+        } catch (CompletionException e) {
+            Response res = ((WebApplicationException) e.getCause()).getResponse();
+            assertEquals(res.getStatus(), 503);
+            assertEquals(String.valueOf(res.getMetadata().getFirst("Retry-After")), "60");
+        }
+    }
+
+    @Test
+    public void testList() throws RiakException, IOException {
+        RiakDAO<BlogPost> posts = new RiakDAO<>(client, BlogPost.class).withMaxInFlight(2);
+        for (int i = 0; i < 5; i++) {
+            posts.store(new BlogPost("post-" + i, "Post " + i, "luc", i));
+        }
+        RiakResourceDriver<BlogPost> postDriver = new RiakResourceDriver<>(posts);
+        RiakIndexQuery<Long> query = RiakIndexQuery.range("published", 0L, 4L).withPageSize(3);
+
+        JsonNode first = render(postDriver.list(query, "posts"));
+        assertEquals(first.get("items").size(), 3);
+        assertEquals(first.get("items").get(2).get("title").asText(), "Post 2");
+
+        JsonNode second = render(postDriver.list(query.withContinuation(first.get("continuation").asText()), "posts"));
+        assertEquals(second.get("items").size(), 2);
+        assertEquals(second.get("items").get(0).get("title").asText(), "Post 3");
+        assertFalse(second.has("continuation"));
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testListWithBadCursor() {
+        RiakResourceDriver<BlogPost> postDriver = new RiakResourceDriver<>(client, BlogPost.class);
+        postDriver.list(RiakIndexQuery.match("author", "luc").withContinuation("not a cursor!"), "posts");
+    }
+
+    @Test
+    public void testListKeys() throws RiakException, IOException {
+        riak.store(luc);
+        JsonNode listed = render(driver.list("people", Arrays.asList("nobody", luc.getKey()), "siblings"));
+        assertEquals(listed.get("items").size(), 1);
+        assertEquals(listed.get("items").get(0).get("name").asText(), "Luc");
+    }
+
+    @Test
+    public void testListAbortsOnFailedBatch() throws RiakException, IOException {
+        riak.store(luc);
+        // With one call allowed at a time, the prefetch of the second batch is
+        // rejected while the slow first one is still in flight
+        server.withLatency(100, TimeUnit.MILLISECONDS);
+        RiakDAO<Person> oneAtATime = new RiakDAO<>(client, Person.class).withMaxInFlight(1)
+                .withCircuitBreakers(new CircuitBreakers().withMaxConcurrentCalls(1));
+        StreamingOutput output = new RiakResourceDriver<>(oneAtATime)
+                .list("people", Arrays.asList(luc.getKey(), "nobody"), "siblings");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            output.write(bytes);
+            fail("Expected the stream to be aborted");
+        } catch (IOException expected) {
+        }
+        server.withLatency(0, TimeUnit.MILLISECONDS);
+        assertTrue(bytes.toString("UTF-8").contains("\"Luc\""));
+        try {
+            new ObjectMapper().readTree(bytes.toByteArray());
+            fail("Expected a truncated body");
+        } catch (JsonProcessingException expected) {
+        }
+    }
+
+    private static JsonNode render(StreamingOutput output) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        output.write(bytes);
+        return new ObjectMapper().readTree(bytes.toByteArray());
+    }
+
     @After
-    public void tearDown() throws RiakException {
+    public void tearDown() throws Exception {
         riak.delete(luc);
+        cluster.shutdown().get();
+        server.close();
     }
 }
@@ -0,0 +1,125 @@
+package com.lucperkins.dropwizard.riak;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakException;
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.query.Location;
+import com.lucperkins.dropwizard.riak.dao.RiakDAO;
+import com.lucperkins.dropwizard.riak.dao.RiakDataTypeDAO;
+import com.lucperkins.dropwizard.riak.dao.RiakWriteBuffer;
+import com.lucperkins.dropwizard.riak.operations.RiakClusterManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RiakWriteBufferTest {
+    private FakeRiakServer server;
+    private RiakCluster cluster;
+    private RiakDataTypeDAO riak;
+    private Location counter = RiakDAO.makeLocation("likes", "post-1", "counters");
+    private Location set = RiakDAO.makeLocation("tags", "post-1", "sets");
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeRiakServer().start();
+        cluster = server.buildCluster();
+        cluster.start();
+        riak = new RiakDataTypeDAO(new RiakClient(cluster));
+    }
+
+    @Test
+    public void testCoalescesIncrements() throws RiakException {
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 1, TimeUnit.HOURS, Integer.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            buffer.increment(counter, 1);
+        }
+        assertEquals(buffer.getPendingCount(), 1000);
+
+        long before = server.getRequestCount();
+        buffer.flush().join();
+        assertEquals(server.getRequestCount() - before, 1);
+        assertEquals(buffer.getPendingCount(), 0);
+        assertEquals(riak.fetchCounter(counter), 1000);
+        buffer.close();
+    }
+
+    @Test
+    public void testMergesSetOperations() throws RiakException {
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 1, TimeUnit.HOURS, Integer.MAX_VALUE);
+        buffer.addToSet(set, Arrays.asList("a", "b", "c"));
+        buffer.removeFromSet(set, Collections.singletonList("a"));
+        buffer.removeFromSet(set, Collections.singletonList("c"));
+        buffer.addToSet(set, Collections.singletonList("c"));
+        buffer.flush().join();
+        assertEquals(riak.fetchSet(set), new HashSet<>(Arrays.asList("b", "c")));
+        buffer.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMixedKinds() {
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 1, TimeUnit.HOURS, Integer.MAX_VALUE);
+        buffer.increment(counter, 1);
+        buffer.addToSet(counter, Collections.singletonList("a"));
+    }
+
+    @Test
+    public void testSizeTrigger() throws Exception {
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 1, TimeUnit.HOURS, 10);
+        for (int i = 0; i < 9; i++) {
+            buffer.increment(counter, 1);
+        }
+        buffer.increment(counter, 1).get(5, TimeUnit.SECONDS);
+        assertEquals(riak.fetchCounter(counter), 10);
+        buffer.close();
+    }
+
+    @Test
+    public void testTimeTrigger() throws Exception {
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 20, TimeUnit.MILLISECONDS, Integer.MAX_VALUE);
+        buffer.increment(counter, 3).get(5, TimeUnit.SECONDS);
+        assertEquals(riak.fetchCounter(counter), 3);
+        buffer.close();
+    }
+
+    @Test
+    public void testFlushFromCompletionCallback() throws Exception {
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 1, TimeUnit.HOURS, Integer.MAX_VALUE);
+        // An empty increment completes inline, so the callback runs inside the flush
+        CompletableFuture<Void> nested = buffer.increment(counter, 0).thenCompose(ignored -> {
+            buffer.increment(counter, 2);
+            return buffer.flush();
+        });
+        buffer.flush();
+        nested.get(5, TimeUnit.SECONDS);
+        assertEquals(riak.fetchCounter(counter), 2);
+        buffer.close();
+    }
+
+    @Test
+    public void testFlushOnStop() throws Exception {
+        RiakClusterManager manager = new RiakClusterManager(cluster);
+        RiakWriteBuffer buffer = new RiakWriteBuffer(riak, 1, TimeUnit.HOURS, Integer.MAX_VALUE);
+        manager.registerWriteBuffer(buffer);
+        buffer.increment(counter, 7);
+        manager.stop();
+
+        cluster = server.buildCluster();
+        cluster.start();
+        assertEquals(new RiakDataTypeDAO(new RiakClient(cluster)).fetchCounter(counter), 7);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cluster.shutdown().get();
+        server.close();
+    }
+}
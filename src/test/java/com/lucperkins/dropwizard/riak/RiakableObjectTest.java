@@ -2,6 +2,7 @@ package com.lucperkins.dropwizard.riak;
 
 import com.basho.riak.client.core.query.Location;
 import com.basho.riak.client.core.query.Namespace;
+import com.lucperkins.dropwizard.riak.dao.RiakNamespaces;
 import com.lucperkins.dropwizard.riak.dao.RiakableObject;
 import org.junit.Rule;
 import org.junit.Test;
@@ -35,6 +36,20 @@ public class RiakableObjectTest {
         assertEquals(testPojo.getLocation(), new Location(new Namespace("siblings", "pojos"), "leet"));
     }
 
+    @Test
+    public void testNamespacesInternedUpToLimit() {
+        assertSame(RiakNamespaces.of("siblings", "pojos"), RiakNamespaces.of("siblings", "pojos"));
+
+        // Bucket names from request paths mustn't grow the table without bound
+        for (int i = 0; i < 5000; i++) {
+            RiakNamespaces.of("siblings", "bucket-" + i);
+        }
+        Namespace last = RiakNamespaces.of("siblings", "bucket-4999");
+        assertEquals(last, new Namespace("siblings", "bucket-4999"));
+        assertNotSame(last, RiakNamespaces.of("siblings", "bucket-4999"));
+        assertSame(RiakNamespaces.of("siblings", "pojos"), RiakNamespaces.of("siblings", "pojos"));
+    }
+
     @Test
     public void testFalseLocationInfo() {
         Pojo testPojo2 = new Pojo("nine-ninety-nine", 999);